@@ -0,0 +1,74 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JVM shim of the framework class, for the benchmarks. Only has what EncryptedCache uses:
+ * preferences, which are kept in memory.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class Context {
+
+    public final static int MODE_PRIVATE = 0;
+
+    private final Map<String, SharedPreferences> mPreferences = new HashMap<>();
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        SharedPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new MemoryPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+
+    private static class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, String> mValues = new HashMap<>();
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            final String value = mValues.get(key);
+            return value != null ? value : defValue;
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                private final Map<String, String> mChanges = new HashMap<>();
+
+                @Override
+                public Editor putString(String key, String value) {
+                    mChanges.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    mChanges.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    synchronized (MemoryPreferences.this) {
+                        for (Map.Entry<String, String> change : mChanges.entrySet()) {
+                            if (change.getValue() != null)
+                                mValues.put(change.getKey(), change.getValue());
+                            else
+                                mValues.remove(change.getKey());
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+    }
+}
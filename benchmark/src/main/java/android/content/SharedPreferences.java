@@ -0,0 +1,24 @@
+package android.content;
+
+/**
+ * JVM shim of the framework interface, for the benchmarks. Only has what EncryptedCache uses.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface SharedPreferences {
+
+    String getString(String key, String defValue);
+
+    Editor edit();
+
+    interface Editor {
+
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        boolean commit();
+
+        void apply();
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * JVM shim of the framework class, for the benchmarks. Reports API 19, the lowest level with
+ * AES-GCM and below the AndroidKeyStore's AES keys, which the JVM doesn't have.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class Build {
+
+    public static class VERSION {
+        public final static int SDK_INT = VERSION_CODES.KITKAT;
+    }
+
+    public static class VERSION_CODES {
+        public final static int KITKAT = 19;
+        public final static int M = 23;
+    }
+}
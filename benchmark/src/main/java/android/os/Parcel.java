@@ -0,0 +1,252 @@
+package android.os;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JVM shim of the framework class, for the benchmarks. Values are laid out like the native Parcel
+ * does it (little endian, 4 byte aligned, strings as UTF-16), so marshalling does comparable work
+ * and payload sizes match what crosses Binder on a device.
+ * <p/>
+ * Parcelables written with {@link #writeParcelable(Parcelable, int)} are read back through their
+ * CREATOR, and file descriptors are handed over in process, see {@link ParcelFileDescriptor}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class Parcel {
+
+    private final static Map<String, Parcelable.Creator<?>> CREATORS = new HashMap<>();
+
+    private byte[] mData = new byte[256];
+    private int mSize;
+    private int mPosition;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mData = null;
+        mSize = 0;
+        mPosition = 0;
+    }
+
+    public int dataSize() {
+        return mSize;
+    }
+
+    public int dataAvail() {
+        return mSize - mPosition;
+    }
+
+    public int dataPosition() {
+        return mPosition;
+    }
+
+    public void setDataPosition(int pos) {
+        mPosition = pos;
+    }
+
+    public byte[] marshall() {
+        return Arrays.copyOf(mData, mSize);
+    }
+
+    public void unmarshall(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mData, 0, length);
+        mSize = length;
+        mPosition = length;
+    }
+
+    public void appendFrom(Parcel parcel, int offset, int length) {
+        ensureCapacity(mPosition + length);
+        System.arraycopy(parcel.mData, offset, mData, mPosition, length);
+        advance(length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mData.length)
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length * 2));
+    }
+
+    private void advance(int length) {
+        mPosition += length;
+        if (mPosition > mSize)
+            mSize = mPosition;
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(mPosition + 4);
+        final byte[] data = mData;
+        final int pos = mPosition;
+        data[pos] = (byte) value;
+        data[pos + 1] = (byte) (value >> 8);
+        data[pos + 2] = (byte) (value >> 16);
+        data[pos + 3] = (byte) (value >> 24);
+        advance(4);
+    }
+
+    public int readInt() {
+        if (mPosition + 4 > mSize) {
+            // The native Parcel reads zero past the end
+            mPosition = mSize;
+            return 0;
+        }
+        final byte[] data = mData;
+        final int pos = mPosition;
+        mPosition += 4;
+        return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff) << 16 | data[pos + 3] << 24;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) value);
+        writeInt((int) (value >>> 32));
+    }
+
+    public long readLong() {
+        final long low = readInt() & 0xffffffffL;
+        return low | ((long) readInt() << 32);
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeInt(-1);
+            return;
+        }
+        final int length = value.length();
+        writeInt(length);
+        // The characters and a terminating null, padded to 4 bytes
+        final int size = ((length + 1) * 2 + 3) & ~3;
+        ensureCapacity(mPosition + size);
+        final byte[] data = mData;
+        int pos = mPosition;
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            data[pos++] = (byte) c;
+            data[pos++] = (byte) (c >> 8);
+        }
+        Arrays.fill(data, pos, mPosition + size, (byte) 0);
+        advance(size);
+    }
+
+    public String readString() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final int size = ((length + 1) * 2 + 3) & ~3;
+        if (mPosition + size > mSize)
+            throw new IllegalStateException("String of " + length + " chars runs past the end of the parcel");
+        final char[] chars = new char[length];
+        final byte[] data = mData;
+        int pos = mPosition;
+        for (int i = 0; i < length; i++, pos += 2)
+            chars[i] = (char) ((data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8);
+        mPosition += size;
+        return new String(chars);
+    }
+
+    public void writeStringArray(String[] values) {
+        if (values == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(values.length);
+        for (String value : values)
+            writeString(value);
+    }
+
+    public String[] createStringArray() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final String[] values = new String[length];
+        for (int i = 0; i < length; i++)
+            values[i] = readString();
+        return values;
+    }
+
+    public void writeIntArray(int[] values) {
+        if (values == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(values.length);
+        for (int value : values)
+            writeInt(value);
+    }
+
+    public int[] createIntArray() {
+        final int length = readInt();
+        if (length < 0)
+            return null;
+        final int[] values = new int[length];
+        for (int i = 0; i < length; i++)
+            values[i] = readInt();
+        return values;
+    }
+
+    public <T extends Parcelable> void writeTypedList(List<T> values) {
+        if (values == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(values.size());
+        for (T value : values) {
+            if (value == null) {
+                writeInt(0);
+            } else {
+                writeInt(1);
+                value.writeToParcel(this, 0);
+            }
+        }
+    }
+
+    public <T> void readTypedList(List<T> list, Parcelable.Creator<T> creator) {
+        final int length = readInt();
+        for (int i = 0; i < length; i++)
+            list.add(readInt() != 0 ? creator.createFromParcel(this) : null);
+    }
+
+    public void writeParcelable(Parcelable p, int flags) {
+        if (p == null) {
+            writeString(null);
+            return;
+        }
+        writeString(p.getClass().getName());
+        p.writeToParcel(this, flags);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        final String name = readString();
+        if (name == null)
+            return null;
+        return (T) getCreator(name, loader).createFromParcel(this);
+    }
+
+    /**
+     * Looked up once per class, as the framework does.
+     */
+    private static Parcelable.Creator<?> getCreator(String name, ClassLoader loader) {
+        synchronized (CREATORS) {
+            Parcelable.Creator<?> creator = CREATORS.get(name);
+            if (creator == null) {
+                try {
+                    final Field field = Class.forName(name, true,
+                            loader != null ? loader : Parcel.class.getClassLoader()).getField("CREATOR");
+                    creator = (Parcelable.Creator<?>) field.get(null);
+                } catch (Exception e) {
+                    throw new IllegalStateException("No CREATOR in " + name, e);
+                }
+                CREATORS.put(name, creator);
+            }
+            return creator;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package android.os;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JVM shim of the framework class, for the benchmarks. Pipes are real (java.nio) pipes; writing a
+ * descriptor to a Parcel hands it to whoever reads the Parcel in the same process, which is what
+ * Binder does across processes.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class ParcelFileDescriptor implements Parcelable, Closeable {
+
+    private final static Map<Integer, ParcelFileDescriptor> HANDED_OVER = new ConcurrentHashMap<>();
+    private final static AtomicInteger NEXT_HANDLE = new AtomicInteger();
+
+    private final Channel mChannel;
+    private final InputStream mInput;
+    private final OutputStream mOutput;
+
+    private ParcelFileDescriptor(Channel channel, InputStream input, OutputStream output) {
+        mChannel = channel;
+        mInput = input;
+        mOutput = output;
+    }
+
+    /**
+     * Returns the read side and the write side of a new pipe.
+     */
+    public static ParcelFileDescriptor[] createPipe() throws IOException {
+        final Pipe pipe = Pipe.open();
+        return new ParcelFileDescriptor[]{
+                new ParcelFileDescriptor(pipe.source(), Channels.newInputStream(pipe.source()), null),
+                new ParcelFileDescriptor(pipe.sink(), null, Channels.newOutputStream(pipe.sink()))
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        final int handle = NEXT_HANDLE.getAndIncrement();
+        HANDED_OVER.put(handle, this);
+        dest.writeInt(handle);
+    }
+
+    public static final Parcelable.Creator<ParcelFileDescriptor> CREATOR = new Parcelable.Creator<ParcelFileDescriptor>() {
+        @Override
+        public ParcelFileDescriptor createFromParcel(Parcel source) {
+            return HANDED_OVER.remove(source.readInt());
+        }
+
+        @Override
+        public ParcelFileDescriptor[] newArray(int size) {
+            return new ParcelFileDescriptor[size];
+        }
+    };
+
+    public static class AutoCloseInputStream extends FilterInputStream {
+
+        private final ParcelFileDescriptor mFd;
+
+        public AutoCloseInputStream(ParcelFileDescriptor fd) {
+            super(fd.mInput);
+            mFd = fd;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                mFd.close();
+            }
+        }
+    }
+
+    public static class AutoCloseOutputStream extends FilterOutputStream {
+
+        private final ParcelFileDescriptor mFd;
+
+        public AutoCloseOutputStream(ParcelFileDescriptor fd) {
+            super(fd.mOutput);
+            mFd = fd;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream writes byte by byte
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                mFd.close();
+            }
+        }
+    }
+}
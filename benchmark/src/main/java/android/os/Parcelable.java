@@ -0,0 +1,22 @@
+package android.os;
+
+/**
+ * JVM shim of the framework interface, for the benchmarks.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface Parcelable {
+
+    int PARCELABLE_WRITE_RETURN_VALUE = 0x0001;
+
+    int describeContents();
+
+    void writeToParcel(Parcel dest, int flags);
+
+    interface Creator<T> {
+
+        T createFromParcel(Parcel source);
+
+        T[] newArray(int size);
+    }
+}
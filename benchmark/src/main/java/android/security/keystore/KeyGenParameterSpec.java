@@ -0,0 +1,36 @@
+package android.security.keystore;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * Compile-only shim of the framework class, for the benchmarks. See {@link KeyProperties}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class KeyGenParameterSpec implements AlgorithmParameterSpec {
+
+    private KeyGenParameterSpec() {
+    }
+
+    public final static class Builder {
+
+        public Builder(String keystoreAlias, int purposes) {
+        }
+
+        public Builder setBlockModes(String... blockModes) {
+            return this;
+        }
+
+        public Builder setEncryptionPaddings(String... paddings) {
+            return this;
+        }
+
+        public Builder setKeySize(int keySize) {
+            return this;
+        }
+
+        public KeyGenParameterSpec build() {
+            return new KeyGenParameterSpec();
+        }
+    }
+}
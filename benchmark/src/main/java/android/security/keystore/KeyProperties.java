@@ -0,0 +1,16 @@
+package android.security.keystore;
+
+/**
+ * Compile-only shim of the framework class, for the benchmarks. The shimmed {@link android.os.Build}
+ * is below API 23, so the AndroidKeyStore is never used.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public abstract class KeyProperties {
+
+    public final static int PURPOSE_ENCRYPT = 1;
+    public final static int PURPOSE_DECRYPT = 2;
+    public final static String KEY_ALGORITHM_AES = "AES";
+    public final static String BLOCK_MODE_GCM = "GCM";
+    public final static String ENCRYPTION_PADDING_NONE = "NoPadding";
+}
@@ -0,0 +1,22 @@
+package android.util;
+
+/**
+ * JVM shim of the framework class, for the benchmarks. Only the flags EncryptedCache uses.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class Base64 {
+
+    public final static int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(input);
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getDecoder().decode(str);
+    }
+}
@@ -0,0 +1,46 @@
+package com.afollestad.cabinet.plugins;
+
+/**
+ * A single measured operation, see {@link Benchmarks}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+abstract class Benchmark {
+
+    private final String mName;
+
+    Benchmark(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Called before every batch of operations, outside of the measurement, e.g. to prepare inputs
+     * that an operation uses up.
+     */
+    public void setUp(int operations) throws Exception {
+    }
+
+    /**
+     * The fewest operations to warm up with, for operations whose hot paths take many runs to be
+     * compiled; the warmup lasts at least this long anyway.
+     */
+    public int getWarmupOperations() {
+        return 0;
+    }
+
+    /**
+     * The number of bytes an operation reads or writes, for throughput; 0 if that doesn't apply.
+     */
+    public long getBytesProcessed() {
+        return 0;
+    }
+
+    /**
+     * Performs the operation once. The result is kept, so the work can't be optimized away.
+     */
+    public abstract Object run() throws Exception;
+}
@@ -0,0 +1,363 @@
+package com.afollestad.cabinet.plugins;
+
+import android.content.Context;
+import android.os.Parcel;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks of the code that runs for every file in a listing. Each benchmark is warmed up,
+ * then run in batches until {@link #MEASURE_NANOS} have passed, and reported as the average time
+ * and heap allocation per operation. Allocations are counted on the calling thread only, so bytes
+ * written to a pipe by ParcelPayload's writers aren't included.
+ * <p/>
+ * Run with <code>./gradlew :benchmark:run</code>, or <code>./gradlew :benchmark:run -Pfilter=Ls</code>
+ * for the benchmarks whose name contains a string.
+ * <p/>
+ * The heap retained by a large unparcelled listing is reported separately, since that's what
+ * stays around while the app shows it.
+ * <p/>
+ * The cache benchmarks compare {@link EncryptedCache} with plain file streams on the same file,
+ * and also report throughput. They run against the JVM's AES-GCM, so they show the cost of the
+ * chunking and buffering more than what a device's crypto hardware would do.
+ * <p/>
+ * Watcher registration and Stub dispatch need a running service, they're measured end to end on a
+ * device by the sample app's load test.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class Benchmarks {
+
+    private final static long WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final static long MEASURE_NANOS = TimeUnit.SECONDS.toNanos(2);
+    /**
+     * Batches are grown until they take at least this long, so timer and counter reads don't
+     * dominate fast operations.
+     */
+    private final static long MIN_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final static String PACKAGE = "com.afollestad.cabinet.plugins.benchmark";
+    private final static String FOLDER = "/storage/emulated/0/Documents/Projects/cabinet/src";
+    /**
+     * A folder with this many files is the case that janks low end devices.
+     */
+    private final static int LARGE_LISTING = 50000;
+    private final static int CACHE_FILE_SIZE = 1024 * 1024;
+    private final static String ACCOUNT = "benchmark";
+
+    private static volatile int sSink;
+
+    public static void main(String[] args) throws Exception {
+        final String filter = args.length > 0 ? args[0] : null;
+        // Large payloads are piped from a pool, like they are in a running service
+        final ExecutorService writers = Executors.newCachedThreadPool();
+        ParcelPayload.setWriters(writers);
+        try {
+            System.out.println(String.format("%-48s %14s %14s %10s", "Benchmark", "ns/op", "bytes/op", "MB/s"));
+            for (Benchmark benchmark : createBenchmarks()) {
+                if (filter != null && !benchmark.getName().contains(filter))
+                    continue;
+                measure(benchmark);
+            }
+            if (filter == null || "retained".contains(filter))
+                measureRetained(LARGE_LISTING);
+        } finally {
+            ParcelPayload.setWriters(null);
+            writers.shutdownNow();
+        }
+    }
+
+    private static List<Benchmark> createBenchmarks() throws Exception {
+        final List<Benchmark> benchmarks = new ArrayList<>();
+        final PluginFile file = createListing(1).get(0);
+        final byte[] marshalled = marshall(file);
+        final String json = file.toJson().toString();
+
+        benchmarks.add(new Benchmark("PluginFile parcel write") {
+            @Override
+            public Object run() {
+                final Parcel parcel = Parcel.obtain();
+                file.writeToParcel(parcel, 0);
+                final int size = parcel.dataSize();
+                parcel.recycle();
+                return size;
+            }
+        });
+        benchmarks.add(new Benchmark("PluginFile parcel read") {
+            @Override
+            public Object run() {
+                final Parcel parcel = unmarshall(marshalled);
+                final PluginFile result = PluginFile.CREATOR.createFromParcel(parcel);
+                parcel.recycle();
+                return result;
+            }
+        });
+        benchmarks.add(new Benchmark("PluginFile JSON write") {
+            @Override
+            public Object run() {
+                return file.toJson().toString();
+            }
+        });
+        benchmarks.add(new Benchmark("PluginFile JSON read") {
+            @Override
+            public Object run() throws Exception {
+                return new PluginFile(new JSONObject(json));
+            }
+        });
+
+        for (final int count : new int[]{1000, 10000, 100000}) {
+            final PluginLsResult listing = new PluginLsResult(null, createListing(count));
+            benchmarks.add(new Benchmark("PluginLsResult round trip, " + count + " entries") {
+                @Override
+                public Object run() {
+                    // What crosses Binder: written by the plugin, copied, read by the app
+                    final Parcel parcel = unmarshall(marshall(listing));
+                    final PluginLsResult result = PluginLsResult.CREATOR.createFromParcel(parcel);
+                    parcel.recycle();
+                    return result.getResults().size();
+                }
+            });
+        }
+
+        final PluginLsResult large = new PluginLsResult(null, createListing(LARGE_LISTING));
+        benchmarks.add(new Benchmark("PluginLsResult read, " + LARGE_LISTING + " entries") {
+            private final List<byte[]> mPending = new ArrayList<>();
+
+            @Override
+            public void setUp(int operations) {
+                // Every marshalled copy is read once, large payloads go through a pipe
+                mPending.clear();
+                for (int i = 0; i < operations; i++)
+                    mPending.add(marshall(large));
+            }
+
+            @Override
+            public Object run() {
+                final Parcel parcel = unmarshall(mPending.remove(mPending.size() - 1));
+                final PluginLsResult result = PluginLsResult.CREATOR.createFromParcel(parcel);
+                parcel.recycle();
+                return result.getResults().size();
+            }
+        });
+
+        final String deepPath = FOLDER + "/main/java/com/afollestad/cabinet/File.java";
+        benchmarks.add(new Benchmark("PluginFile build, depth 13") {
+            @Override
+            public Object run() {
+                return new PluginFile.Builder(null, PACKAGE).path(deepPath).build();
+            }
+        });
+        benchmarks.add(new Benchmark("PluginFile build + getParent() chain, depth 13") {
+            @Override
+            public Object run() {
+                PluginFile current = new PluginFile.Builder(null, PACKAGE).path(deepPath).build();
+                int depth = 0;
+                while ((current = current.getParent()) != null)
+                    depth++;
+                return depth;
+            }
+        });
+        addCacheBenchmarks(benchmarks);
+        return benchmarks;
+    }
+
+    private static void addCacheBenchmarks(List<Benchmark> benchmarks) throws IOException {
+        final EncryptedCache cache = new EncryptedCache(new Context());
+        final byte[] contents = new byte[CACHE_FILE_SIZE];
+        new Random(42).nextBytes(contents);
+        final File plain = createTempFile();
+        final File encrypted = createTempFile();
+        write(new FileOutputStream(plain), contents);
+        write(cache.openWrite(ACCOUNT, encrypted), contents);
+
+        benchmarks.add(new CacheBenchmark("Cache write, plaintext, 1MB") {
+            @Override
+            public Object run() throws IOException {
+                return write(new FileOutputStream(plain), contents);
+            }
+        });
+        benchmarks.add(new CacheBenchmark("Cache write, encrypted, 1MB") {
+            @Override
+            public Object run() throws IOException {
+                return write(cache.openWrite(ACCOUNT, encrypted), contents);
+            }
+        });
+        benchmarks.add(new CacheBenchmark("Cache read, plaintext, 1MB") {
+            @Override
+            public Object run() throws IOException {
+                return read(new FileInputStream(plain));
+            }
+        });
+        benchmarks.add(new CacheBenchmark("Cache read, encrypted, 1MB") {
+            @Override
+            public Object run() throws IOException {
+                return read(cache.openRead(ACCOUNT, encrypted, 0));
+            }
+        });
+    }
+
+    private static abstract class CacheBenchmark extends Benchmark {
+
+        CacheBenchmark(String name) {
+            super(name);
+        }
+
+        @Override
+        public int getWarmupOperations() {
+            // The JIT only compiles AES-GCM's intrinsics after a few thousand chunks
+            return 500;
+        }
+
+        @Override
+        public long getBytesProcessed() {
+            return CACHE_FILE_SIZE;
+        }
+    }
+
+    private static File createTempFile() throws IOException {
+        final File file = File.createTempFile("benchmark", null);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Writes contents in chunks the size Prefetcher copies with, and closes the stream.
+     */
+    private static int write(OutputStream os, byte[] contents) throws IOException {
+        try {
+            for (int offset = 0; offset < contents.length; offset += EncryptedCache.CHUNK_SIZE)
+                os.write(contents, offset, Math.min(EncryptedCache.CHUNK_SIZE, contents.length - offset));
+        } finally {
+            os.close();
+        }
+        return contents.length;
+    }
+
+    private static long read(InputStream is) throws IOException {
+        long total = 0;
+        try {
+            final byte[] buffer = new byte[EncryptedCache.CHUNK_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                total += read;
+        } finally {
+            is.close();
+        }
+        return total;
+    }
+
+    /**
+     * The files of one folder, as a plugin would list them.
+     */
+    static List<PluginFile> createListing(int count) {
+        final PluginFile folder = new PluginFile.Builder(null, PACKAGE)
+                .path(FOLDER)
+                .isDir(true)
+                .modified(1450000000000L)
+                .build();
+        final List<PluginFile> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(new PluginFile.Builder(folder, PACKAGE)
+                    .path(FOLDER + "/file-" + i + ".txt")
+                    .created(1450000000000L + i)
+                    .modified(1450000000000L + i)
+                    .length(1024 + i)
+                    .permissions("rw-r--r--")
+                    .build());
+        }
+        return files;
+    }
+
+    static byte[] marshall(android.os.Parcelable parcelable) {
+        final Parcel parcel = Parcel.obtain();
+        parcelable.writeToParcel(parcel, 0);
+        final byte[] data = parcel.marshall();
+        parcel.recycle();
+        return data;
+    }
+
+    static Parcel unmarshall(byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(data, 0, data.length);
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+
+    /**
+     * Bytes allocated by the calling thread so far. Needs a HotSpot based JVM.
+     */
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void measureRetained(int count) throws Exception {
+        // The entries alone, a listing's pipe would hand its payload over while it's read
+        final Parcel parcel = Parcel.obtain();
+        PluginFile.writeList(parcel, createListing(count), 0);
+        parcel.setDataPosition(0);
+        final long before = usedHeap();
+        final List<PluginFile> result = new ArrayList<>(count);
+        PluginFile.readList(parcel, result);
+        final long retained = usedHeap() - before;
+        sSink += result.size() + parcel.dataSize();
+        System.out.println(String.format("%-48s %14s %14.1f", "Retained by a " + count + " entry listing",
+                "", (double) retained / count) + " bytes/entry");
+    }
+
+    private static void measure(Benchmark benchmark) throws Exception {
+        int batch = 1;
+        long warmedUp = 0;
+        final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd || warmedUp < benchmark.getWarmupOperations()) {
+            benchmark.setUp(batch);
+            final long start = System.nanoTime();
+            for (int i = 0; i < batch; i++)
+                sSink += benchmark.run().hashCode();
+            warmedUp += batch;
+            if (System.nanoTime() - start < MIN_BATCH_NANOS)
+                batch *= 2;
+        }
+
+        long operations = 0;
+        long nanos = 0;
+        long bytes = 0;
+        while (nanos < MEASURE_NANOS) {
+            benchmark.setUp(batch);
+            final long allocated = allocatedBytes();
+            final long start = System.nanoTime();
+            for (int i = 0; i < batch; i++)
+                sSink += benchmark.run().hashCode();
+            nanos += System.nanoTime() - start;
+            bytes += allocatedBytes() - allocated;
+            operations += batch;
+        }
+        final long processed = benchmark.getBytesProcessed() * operations;
+        System.out.println(String.format("%-48s %14.1f %14.1f %10s", benchmark.getName(),
+                (double) nanos / operations, (double) bytes / operations,
+                processed > 0 ? String.format("%.1f", processed * 1e9 / nanos / (1024 * 1024)) : ""));
+    }
+}
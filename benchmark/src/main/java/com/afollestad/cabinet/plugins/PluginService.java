@@ -0,0 +1,18 @@
+package com.afollestad.cabinet.plugins;
+
+/**
+ * Stands in for the library's PluginService, which the benchmarked classes only refer to for
+ * {@link PluginFile.Builder} and conflict copy names. The real one needs the Android framework.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public abstract class PluginService {
+
+    public String getPackageName() {
+        return "com.afollestad.cabinet.plugins.benchmark";
+    }
+
+    public String getString(int resId, Object... formatArgs) {
+        return String.format("%s (conflict)%s", formatArgs);
+    }
+}
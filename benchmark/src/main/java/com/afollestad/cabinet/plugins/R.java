@@ -0,0 +1,20 @@
+package com.afollestad.cabinet.plugins;
+
+/**
+ * Stands in for the library's generated resources, see {@link PluginService}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class R {
+
+    private R() {
+    }
+
+    static final class string {
+
+        static final int conflict_copy_name = 0;
+
+        private string() {
+        }
+    }
+}
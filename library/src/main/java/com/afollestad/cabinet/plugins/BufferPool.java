@@ -0,0 +1,42 @@
+package com.afollestad.cabinet.plugins;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of direct buffers shared by the copy helpers, so copy loops don't allocate (and the
+ * GC doesn't have to reclaim) a buffer per transfer. Direct buffers let FileChannel reads and writes
+ * skip a copy through the Java heap; streams wrapped with Channels#newChannel() still copy through
+ * a heap array either way.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class BufferPool {
+
+    public final static int BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_POOLED = 8;
+
+    private final static ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private final static AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    public static ByteBuffer acquire() {
+        final ByteBuffer buffer = POOL.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        POOLED.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public static void release(ByteBuffer buffer) {
+        // Buffers past the limit are left for the GC
+        if (POOLED.incrementAndGet() <= MAX_POOLED)
+            POOL.offer(buffer);
+        else
+            POOLED.decrementAndGet();
+    }
+}
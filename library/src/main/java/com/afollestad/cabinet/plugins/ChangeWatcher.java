@@ -7,6 +7,9 @@ import android.util.Log;
 import java.io.File;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -17,8 +20,11 @@ class ChangeWatcher extends FileObserver {
     private final static long UPLOAD_DELAY = 150;
 
     private final String mPath;
-    private final PluginFile mRemote;
     private final PluginService mService;
+    private volatile PluginFile mRemote;
+    private volatile String mSyncedHash;
+    private volatile String mPendingHash;
+    private volatile Future<?> mHashing;
     private Timer mTimer;
     private long mAccess;
 
@@ -33,7 +39,6 @@ class ChangeWatcher extends FileObserver {
         mRemote = remote;
         mService = service;
         mAccess = System.currentTimeMillis();
-        startWatching();
     }
 
     private void queueUpload() {
@@ -45,12 +50,16 @@ class ChangeWatcher extends FileObserver {
         mTimer.schedule(new TimerTask() {
             @Override
             public void run() {
-                try {
-                    mService.upload(Uri.fromFile(new File(mPath)), mRemote);
-                } catch (Exception e) {
-                    mService.showError(mService.getString(
-                            R.string.failed_upload_error, mPath, e.getLocalizedMessage()));
+                awaitSyncedHash();
+                // Editors often rewrite files that weren't changed
+                final String hash = UploadGuard.hash(new File(mPath));
+                if (hash != null && hash.equals(mSyncedHash)) {
+                    log(mPath + " is unchanged since it was last synced, skipping upload.");
+                    return;
                 }
+                mPendingHash = hash;
+                // The transfer queue retries failed uploads and survives the process being killed
+                mService.enqueueWatchedUpload(Uri.fromFile(new File(mPath)), mRemote);
             }
         }, UPLOAD_DELAY);
     }
@@ -83,6 +92,52 @@ class ChangeWatcher extends FileObserver {
         return mPath;
     }
 
+    public PluginFile getRemote() {
+        return mRemote;
+    }
+
+    /**
+     * The hash of the local file's contents when it was last in sync with the remote file.
+     */
+    public String getSyncedHash() {
+        return mSyncedHash;
+    }
+
+    public void setSyncedHash(String hash) {
+        mSyncedHash = hash;
+    }
+
+    /**
+     * Sets the task computing the synced hash, which changes are compared against once it's done.
+     */
+    public void setHashing(Future<?> hashing) {
+        mHashing = hashing;
+    }
+
+    private void awaitSyncedHash() {
+        final Future<?> hashing = mHashing;
+        if (hashing == null) return;
+        try {
+            hashing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log("Failed to hash " + mPath + ": " + e.getCause());
+        } catch (CancellationException ignored) {
+        }
+        mHashing = null;
+    }
+
+    /**
+     * Called when a queued upload of the file finished. Later uploads are checked against result,
+     * which may be a conflict copy rather than the original remote file.
+     */
+    public void onUploaded(PluginFile result) {
+        mSyncedHash = mPendingHash;
+        if (result != null)
+            mRemote = result;
+    }
+
     public boolean isExpired() {
         if (mAccess == -1) return true;
         final long now = System.currentTimeMillis();
@@ -0,0 +1,130 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stops calls to an account's backend for a while after several of them failed in a row with
+ * transient errors, so a backend that's down isn't hammered by every caller's retries. Calls
+ * are refused with {@link PluginError#ERROR_UNAVAILABLE} until the circuit's open period is
+ * over; then a single call is let through to probe the backend. If the probe fails, the circuit
+ * opens again for twice as long (up to a maximum), otherwise it closes.
+ * <p/>
+ * Failures that aren't transient (e.g. not found) mean the backend is reachable, so they count
+ * as successes.
+ * <p/>
+ * Only accounts with failures since their last success have any state, which is dropped again by
+ * the next success, so most of the time there's nothing to check or reset.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class CircuitBreaker {
+
+    private final int mThreshold;
+    private final long mOpenMillis;
+    private final long mMaxOpenMillis;
+    private final ConcurrentMap<String, Circuit> mCircuits = new ConcurrentHashMap<>();
+
+    private static class Circuit {
+        int failures;
+        int trips;
+        long openUntil;
+        long probeStarted;
+        /**
+         * Dropped by a success; failures that raced with it start a new circuit.
+         */
+        boolean removed;
+    }
+
+    public CircuitBreaker(int threshold, long openMillis, long maxOpenMillis) {
+        mThreshold = threshold;
+        mOpenMillis = openMillis;
+        mMaxOpenMillis = maxOpenMillis;
+    }
+
+    private static String key(String account) {
+        return account != null ? account : "";
+    }
+
+    private Circuit get(String account) {
+        final String key = key(account);
+        Circuit circuit = mCircuits.get(key);
+        if (circuit == null) {
+            final Circuit created = new Circuit();
+            circuit = mCircuits.putIfAbsent(key, created);
+            if (circuit == null) circuit = created;
+        }
+        return circuit;
+    }
+
+    /**
+     * Whether any account has failures on record. Usually false, in which case callers can skip
+     * looking up the account to check or reset.
+     */
+    public boolean isTracking() {
+        return !mCircuits.isEmpty();
+    }
+
+    /**
+     * Returns null if a call to the account's backend may go ahead, otherwise the error to fail
+     * it with.
+     */
+    public PluginError check(String account) {
+        final Circuit circuit = mCircuits.get(key(account));
+        if (circuit == null) return null;
+        synchronized (circuit) {
+            if (circuit.openUntil == 0) return null;
+            final long now = SystemClock.elapsedRealtime();
+            if (now < circuit.openUntil)
+                return unavailable(circuit.openUntil - now);
+            // A probe that never reported back doesn't keep the circuit half open forever
+            if (circuit.probeStarted != 0 && now - circuit.probeStarted < mOpenMillis)
+                return unavailable(mOpenMillis - (now - circuit.probeStarted));
+            circuit.probeStarted = now;
+            return null;
+        }
+    }
+
+    public void onSuccess(String account) {
+        final String key = key(account);
+        final Circuit circuit = mCircuits.get(key);
+        if (circuit == null) return;
+        synchronized (circuit) {
+            if (circuit.openUntil != 0)
+                Log.d("CircuitBreaker", "Closing the circuit of " + account);
+            circuit.removed = true;
+            mCircuits.remove(key, circuit);
+        }
+    }
+
+    public void onFailure(String account, PluginError error) {
+        if (!PluginError.isTransient(error.getCode())) {
+            onSuccess(account);
+            return;
+        }
+        while (true) {
+            final Circuit circuit = get(account);
+            synchronized (circuit) {
+                if (circuit.removed) continue;
+                circuit.failures++;
+                if (circuit.probeStarted == 0 && circuit.failures < mThreshold) return;
+                final long duration = Math.max(error.getRetryAfter(),
+                        Math.min(mMaxOpenMillis, mOpenMillis << Math.min(circuit.trips, 16)));
+                circuit.trips++;
+                circuit.openUntil = SystemClock.elapsedRealtime() + duration;
+                circuit.probeStarted = 0;
+                Log.d("CircuitBreaker", "Opening the circuit of " + account + " for " + duration + "ms after " +
+                        circuit.failures + " failures");
+                return;
+            }
+        }
+    }
+
+    private static PluginError unavailable(long retryAfter) {
+        return new PluginError(PluginError.ERROR_UNAVAILABLE,
+                "Too many calls failed, the backend is given a break.", true, retryAfter);
+    }
+}
@@ -0,0 +1,386 @@
+package com.afollestad.cabinet.plugins;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts cached files at rest with a key per account, so cached copies of remote files can be
+ * kept across sessions. Keys live in the plugin's private preferences; removing an account drops
+ * its key, which makes its cached files unreadable.
+ * <p/>
+ * From API 23, the stored keys are wrapped with a key that never leaves the AndroidKeyStore, so
+ * a copy of the plugin's data directory (e.g. a backup, or a rooted device's files) doesn't
+ * decrypt the cache on its own. Below API 23 keys are stored as they are, which only protects
+ * cached files that get out without the preferences next to them; it doesn't protect against
+ * anyone who can read all of the plugin's private files.
+ * <p/>
+ * Only the files the library keeps across sessions are encrypted. What the plugin writes itself
+ * isn't: openFile() has to return a file the main app can read, and download() writes wherever
+ * the main app asked.
+ * <p/>
+ * Files are split into 64KB chunks, each sealed with AES-GCM. A chunk's nonce is a random
+ * per-file prefix followed by the chunk index, and its associated data is the index and whether
+ * it's the last chunk, so chunks can't be reordered, dropped from the end or moved between files
+ * without failing authentication. Since every chunk can be decrypted on its own, reads can start
+ * at any offset without decrypting what comes before it.
+ * <p/>
+ * AES-GCM is only available from API 19; {@link #isSupported()} is false below that.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class EncryptedCache {
+
+    private final static byte[] MAGIC = {'C', 'B', 'E', '1'};
+    private final static int PREFIX_LENGTH = 8;
+    private final static int HEADER_LENGTH = MAGIC.length + PREFIX_LENGTH;
+    final static int CHUNK_SIZE = 64 * 1024;
+    private final static int TAG_LENGTH = 16;
+    private final static int SEALED_CHUNK_SIZE = CHUNK_SIZE + TAG_LENGTH;
+    private final static int KEY_LENGTH = 32;
+    private final static String TRANSFORMATION = "AES/GCM/NoPadding";
+    private final static String WRAPPED_PREFIX = "w:";
+
+    private final SharedPreferences mKeys;
+    private final KeyWrapper mWrapper;
+    private final Map<String, SecretKeySpec> mUnwrapped = new HashMap<>();
+    private final SecureRandom mRandom = new SecureRandom();
+
+    public EncryptedCache(Context context) {
+        mKeys = context.getSharedPreferences("cache_keys", Context.MODE_PRIVATE);
+        mWrapper = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? new KeyWrapper() : null;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Opens a stream which encrypts everything written to it into file, for the given account.
+     */
+    public OutputStream openWrite(String account, File file) throws IOException {
+        final byte[] prefix = new byte[PREFIX_LENGTH];
+        mRandom.nextBytes(prefix);
+        final FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(MAGIC);
+            os.write(prefix);
+        } catch (IOException e) {
+            os.close();
+            throw e;
+        }
+        return new SealingOutputStream(os, key(account), prefix);
+    }
+
+    /**
+     * Opens a stream which decrypts file for the given account, starting at a plaintext offset.
+     */
+    public InputStream openRead(String account, File file, long offset) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] header = new byte[HEADER_LENGTH];
+            raf.readFully(header);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header[i] != MAGIC[i])
+                    throw new IOException(file + " isn't an encrypted cache file.");
+            }
+            final byte[] prefix = new byte[PREFIX_LENGTH];
+            System.arraycopy(header, MAGIC.length, prefix, 0, PREFIX_LENGTH);
+            return new OpeningInputStream(raf, key(account), prefix, offset);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The length of the plaintext stored in an encrypted file, or -1 if it isn't one.
+     */
+    public static long plaintextLength(File file) {
+        final long body = file.length() - HEADER_LENGTH;
+        if (body < TAG_LENGTH) return -1;
+        final long chunks = (body + SEALED_CHUNK_SIZE - 1) / SEALED_CHUNK_SIZE;
+        return body - chunks * TAG_LENGTH;
+    }
+
+    /**
+     * Forgets an account's key. Files encrypted with it can't be read afterwards.
+     */
+    public synchronized void removeKey(String account) {
+        final String name = String.valueOf(account);
+        mUnwrapped.remove(name);
+        mKeys.edit().remove(name).apply();
+    }
+
+    /**
+     * Returns an account's key, creating it the first time. Unwrapped keys are kept in memory, so
+     * the AndroidKeyStore is only asked once per account.
+     */
+    private synchronized SecretKeySpec key(String account) {
+        final String name = String.valueOf(account);
+        SecretKeySpec spec = mUnwrapped.get(name);
+        if (spec != null)
+            return spec;
+        final String stored = mKeys.getString(name, null);
+        byte[] key = null;
+        boolean store = true;
+        if (stored != null && stored.startsWith(WRAPPED_PREFIX)) {
+            try {
+                if (mWrapper == null)
+                    throw new GeneralSecurityException("The AndroidKeyStore isn't available.");
+                key = mWrapper.unwrap(Base64.decode(stored.substring(WRAPPED_PREFIX.length()), Base64.NO_WRAP));
+                store = false;
+            } catch (GeneralSecurityException | IOException e) {
+                // The wrapping key is gone, so are the files; they fail authentication and get dropped
+                Log.w("EncryptedCache", "Unable to unwrap the key of " + name + ", replacing it", e);
+            }
+        } else if (stored != null) {
+            key = Base64.decode(stored, Base64.NO_WRAP);
+            // Stored before keys were wrapped, it's wrapped now if it can be
+            store = mWrapper != null;
+        }
+        if (key == null) {
+            key = new byte[KEY_LENGTH];
+            mRandom.nextBytes(key);
+        }
+        if (store)
+            mKeys.edit().putString(name, encode(key)).commit();
+        spec = new SecretKeySpec(key, "AES");
+        mUnwrapped.put(name, spec);
+        return spec;
+    }
+
+    private String encode(byte[] key) {
+        if (mWrapper != null) {
+            try {
+                return WRAPPED_PREFIX + Base64.encodeToString(mWrapper.wrap(key), Base64.NO_WRAP);
+            } catch (GeneralSecurityException | IOException e) {
+                // Some devices ship a broken keystore, the cache still works with the weaker storage
+                Log.w("EncryptedCache", "Unable to wrap a cache key, storing it unwrapped", e);
+            }
+        }
+        return Base64.encodeToString(key, Base64.NO_WRAP);
+    }
+
+    private static Cipher cipher(int mode, SecretKeySpec key, byte[] prefix, long index, boolean last) throws IOException {
+        try {
+            final byte[] nonce = ByteBuffer.allocate(PREFIX_LENGTH + 4)
+                    .put(prefix)
+                    .putInt((int) index)
+                    .array();
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(ByteBuffer.allocate(5)
+                    .putInt((int) index)
+                    .put((byte) (last ? 1 : 0))
+                    .array());
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Wraps account keys with an AES key that's generated inside the AndroidKeyStore and can't be
+     * exported. Only used from API 23, which added AES keys to the keystore.
+     */
+    private static class KeyWrapper {
+
+        private final static String PROVIDER = "AndroidKeyStore";
+        private final static String ALIAS = "cabinet_cache_keys";
+
+        private SecretKey mKey;
+
+        private SecretKey key() throws GeneralSecurityException, IOException {
+            if (mKey != null)
+                return mKey;
+            final KeyStore store = KeyStore.getInstance(PROVIDER);
+            store.load(null);
+            final Key existing = store.getKey(ALIAS, null);
+            if (existing instanceof SecretKey) {
+                mKey = (SecretKey) existing;
+            } else {
+                final KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, PROVIDER);
+                generator.init(new KeyGenParameterSpec.Builder(ALIAS,
+                        KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                        .setKeySize(256)
+                        .build());
+                mKey = generator.generateKey();
+            }
+            return mKey;
+        }
+
+        /**
+         * Returns the IV's length, the IV chosen by the keystore, and the sealed key.
+         */
+        byte[] wrap(byte[] key) throws GeneralSecurityException, IOException {
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key());
+            final byte[] iv = cipher.getIV();
+            final byte[] sealed = cipher.doFinal(key);
+            return ByteBuffer.allocate(1 + iv.length + sealed.length)
+                    .put((byte) iv.length)
+                    .put(iv)
+                    .put(sealed)
+                    .array();
+        }
+
+        byte[] unwrap(byte[] wrapped) throws GeneralSecurityException, IOException {
+            final int ivLength = wrapped.length > 0 ? wrapped[0] : 0;
+            if (ivLength <= 0 || 1 + ivLength + TAG_LENGTH > wrapped.length)
+                throw new GeneralSecurityException("Malformed wrapped key.");
+            final Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key(), new GCMParameterSpec(TAG_LENGTH * 8, wrapped, 1, ivLength));
+            return cipher.doFinal(wrapped, 1 + ivLength, wrapped.length - 1 - ivLength);
+        }
+    }
+
+    private static class SealingOutputStream extends OutputStream {
+
+        private final OutputStream mOut;
+        private final SecretKeySpec mKey;
+        private final byte[] mPrefix;
+        private final byte[] mChunk = new byte[CHUNK_SIZE];
+        private int mLength;
+        private long mIndex;
+        private boolean mClosed;
+
+        SealingOutputStream(OutputStream out, SecretKeySpec key, byte[] prefix) {
+            mOut = out;
+            mKey = key;
+            mPrefix = prefix;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            while (count > 0) {
+                // A full chunk is only sealed once more data arrives, the last chunk is sealed on close
+                if (mLength == CHUNK_SIZE)
+                    seal(false);
+                final int copy = Math.min(count, CHUNK_SIZE - mLength);
+                System.arraycopy(buffer, offset, mChunk, mLength, copy);
+                mLength += copy;
+                offset += copy;
+                count -= copy;
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            try {
+                mOut.write(cipher(Cipher.ENCRYPT_MODE, mKey, mPrefix, mIndex++, last).doFinal(mChunk, 0, mLength));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e.getLocalizedMessage());
+            }
+            mLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                seal(true);
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    private static class OpeningInputStream extends InputStream {
+
+        private final RandomAccessFile mFile;
+        private final SecretKeySpec mKey;
+        private final byte[] mPrefix;
+        private final long mChunkCount;
+        private final byte[] mSealed = new byte[SEALED_CHUNK_SIZE];
+        private byte[] mChunk;
+        private int mPosition;
+        private long mIndex;
+
+        OpeningInputStream(RandomAccessFile file, SecretKeySpec key, byte[] prefix, long offset) throws IOException {
+            mFile = file;
+            mKey = key;
+            mPrefix = prefix;
+            final long body = file.length() - HEADER_LENGTH;
+            mChunkCount = (body + SEALED_CHUNK_SIZE - 1) / SEALED_CHUNK_SIZE;
+            mIndex = offset / CHUNK_SIZE;
+            if (mIndex < mChunkCount) {
+                open();
+                mPosition = (int) Math.min(offset % CHUNK_SIZE, mChunk.length);
+            }
+        }
+
+        private void open() throws IOException {
+            final long start = HEADER_LENGTH + mIndex * SEALED_CHUNK_SIZE;
+            final int length = (int) Math.min(SEALED_CHUNK_SIZE, mFile.length() - start);
+            if (length < TAG_LENGTH)
+                throw new EOFException("Truncated chunk " + mIndex);
+            mFile.seek(start);
+            mFile.readFully(mSealed, 0, length);
+            try {
+                mChunk = cipher(Cipher.DECRYPT_MODE, mKey, mPrefix, mIndex, mIndex == mChunkCount - 1)
+                        .doFinal(mSealed, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Chunk " + mIndex + " failed authentication: " + e.getLocalizedMessage());
+            }
+            mIndex++;
+            mPosition = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (count == 0) return 0;
+            while (mChunk == null || mPosition == mChunk.length) {
+                if (mIndex >= mChunkCount) return -1;
+                open();
+            }
+            final int copy = Math.min(count, mChunk.length - mPosition);
+            System.arraycopy(mChunk, mPosition, buffer, offset, copy);
+            mPosition += copy;
+            return copy;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.afollestad.cabinet.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the same folder of several accounts in parallel and merges them into one listing, sorted
+ * by name or modified date, with every entry tagged with its account (see
+ * {@link PluginFile#getAccount()}). Each account's entries are streamed from the plugin, sorted,
+ * and the accounts are combined with a k-way merge.
+ * <p/>
+ * Waiting for the slowest account would hold up the whole listing, so once the first account has
+ * responded, the others get {@link #STRAGGLER_WAIT} to catch up. The accounts that responded by
+ * then are merged into one sorted run. Every account that responds later follows as a sorted run
+ * of its own, in the order they respond, rather than being mixed into entries that were already
+ * emitted.
+ * <p/>
+ * An account that fails doesn't fail the others. Its error is thrown after the rest of the
+ * listing has been emitted.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ListingMerger {
+
+    private final static long STRAGGLER_WAIT = 1000;
+
+    public interface Source {
+        /**
+         * Streams one account's entries into sink.
+         */
+        void list(String accountId, PluginFileSink sink) throws Exception;
+    }
+
+    private final ExecutorService mExecutor;
+    private final Comparator<PluginFile> mComparator;
+
+    public ListingMerger(ExecutorService executor, int sortBy) {
+        mExecutor = executor;
+        mComparator = sortBy == PluginService.SORT_MODIFIED ? BY_MODIFIED : BY_NAME;
+    }
+
+    private final static Comparator<PluginFile> BY_NAME = new Comparator<PluginFile>() {
+        @Override
+        public int compare(PluginFile lhs, PluginFile rhs) {
+            if (lhs.isDir() != rhs.isDir())
+                return lhs.isDir() ? -1 : 1;
+            int result = String.CASE_INSENSITIVE_ORDER.compare(lhs.getName(), rhs.getName());
+            if (result == 0)
+                result = lhs.getName().compareTo(rhs.getName());
+            return result != 0 ? result : compareAccounts(lhs, rhs);
+        }
+    };
+
+    /**
+     * Newest first.
+     */
+    private final static Comparator<PluginFile> BY_MODIFIED = new Comparator<PluginFile>() {
+        @Override
+        public int compare(PluginFile lhs, PluginFile rhs) {
+            if (lhs.getModified() != rhs.getModified())
+                return lhs.getModified() > rhs.getModified() ? -1 : 1;
+            return BY_NAME.compare(lhs, rhs);
+        }
+    };
+
+    private static int compareAccounts(PluginFile lhs, PluginFile rhs) {
+        final String a = lhs.getAccount() != null ? lhs.getAccount() : "";
+        final String b = rhs.getAccount() != null ? rhs.getAccount() : "";
+        return a.compareTo(b);
+    }
+
+    /**
+     * The part of an account's sorted listing that hasn't been emitted yet.
+     */
+    private static class Run {
+        final List<PluginFile> files;
+        int index;
+
+        Run(List<PluginFile> files) {
+            this.files = files;
+        }
+
+        PluginFile head() {
+            return files.get(index);
+        }
+    }
+
+    public void merge(String[] accountIds, final Source source, PluginFileSink sink) throws Exception {
+        final ExecutorCompletionService<Run> completion = new ExecutorCompletionService<>(mExecutor);
+        final List<Future<Run>> futures = new ArrayList<>(accountIds.length);
+        for (final String account : accountIds) {
+            futures.add(completion.submit(new Callable<Run>() {
+                @Override
+                public Run call() throws Exception {
+                    final List<PluginFile> files = new ArrayList<>();
+                    try {
+                        source.list(account, new PluginFileSink() {
+                            @Override
+                            public boolean onFile(PluginFile file) throws InterruptedException {
+                                // The merge was abandoned, stop the plugin's listing
+                                if (Thread.interrupted())
+                                    throw new InterruptedException();
+                                // Tagged copies, the plugin may hold on to its own instances
+                                if (file != null)
+                                    files.add(new PluginFile(file, account));
+                                return true;
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        final PluginException cause = PluginException.from(e);
+                        throw new PluginException(cause.getCode(), "Unable to list " + account + ": " +
+                                cause.getLocalizedMessage(), cause.isRetryable(), cause.getRetryAfter(), e);
+                    }
+                    Collections.sort(files, mComparator);
+                    return new Run(files);
+                }
+            }));
+        }
+
+        final PriorityQueue<Run> heads = new PriorityQueue<>(Math.max(1, accountIds.length), new Comparator<Run>() {
+            @Override
+            public int compare(Run lhs, Run rhs) {
+                return mComparator.compare(lhs.head(), rhs.head());
+            }
+        });
+        final List<Exception> failures = new ArrayList<>();
+        int pending = accountIds.length;
+        try {
+            long deadline = 0;
+            while (pending > 0) {
+                final Future<Run> done;
+                if (deadline == 0) {
+                    done = completion.take();
+                    deadline = System.currentTimeMillis() + STRAGGLER_WAIT;
+                } else {
+                    final long remaining = deadline - System.currentTimeMillis();
+                    done = remaining > 0 ? completion.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) break;
+                }
+                pending--;
+                add(done, heads, failures);
+            }
+
+            // The accounts that made it in time, as one sorted run
+            if (!emit(heads, sink))
+                return;
+            // Then every straggler as a run of its own
+            while (pending > 0) {
+                final Future<Run> done = completion.take();
+                pending--;
+                add(done, heads, failures);
+                if (!emit(heads, sink))
+                    return;
+            }
+        } finally {
+            for (Future<Run> future : futures)
+                future.cancel(true);
+        }
+        if (!failures.isEmpty())
+            throw failures.get(0);
+    }
+
+    /**
+     * Emits the runs in heads merged in order, until they're empty or the sink stops.
+     */
+    private static boolean emit(PriorityQueue<Run> heads, PluginFileSink sink) throws InterruptedException {
+        Run run;
+        while ((run = heads.poll()) != null) {
+            if (!sink.onFile(run.files.get(run.index++)))
+                return false;
+            if (run.index < run.files.size())
+                heads.add(run);
+        }
+        return true;
+    }
+
+    private static void add(Future<Run> done, PriorityQueue<Run> heads, List<Exception> failures)
+            throws InterruptedException {
+        try {
+            final Run run = done.get();
+            if (!run.files.isEmpty())
+                heads.add(run);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            failures.add(cause instanceof Exception ? (Exception) cause : new Exception(cause));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.afollestad.cabinet.plugins;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves streamed listings to the main app a page at a time. Each paged listing runs the plugin's
+ * streaming listFiles() on the executor, feeding a bounded queue: when the main app stops asking
+ * for pages, the queue fills up and the plugin's sink blocks, so it stops fetching from its backend.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class ListingPager {
+
+    /**
+     * Once a page has its first entry, it's returned after at most this long even if it isn't full,
+     * so the first results show up as soon as the backend produces them.
+     */
+    private final static long PAGE_LINGER = 250;
+    /**
+     * How long a page waits for its first entry. Kept short, the caller's Binder thread is blocked
+     * meanwhile; if nothing arrives, an empty page with the same cursor is returned.
+     */
+    private final static long PAGE_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    private final static long SESSION_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+    private final static PluginFile END = new PluginFile.Builder(null, "").build();
+
+    private final ExecutorService mExecutor;
+    private final Map<String, Session> mSessions = new ConcurrentHashMap<>();
+
+    public ListingPager(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    public interface Producer {
+        void produce(PluginFileSink sink) throws Exception;
+    }
+
+    /**
+     * Starts a paged listing and returns its cursor.
+     */
+    public String start(int pageSize, final Producer producer) {
+        expireSessions();
+        final Session session = new Session(Math.max(1, pageSize));
+        final String cursor = UUID.randomUUID().toString();
+        mSessions.put(cursor, session);
+        session.future = mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    producer.produce(new PluginFileSink() {
+                        @Override
+                        public boolean onFile(PluginFile file) throws InterruptedException {
+                            if (session.cancelled) return false;
+                            session.queue.put(file);
+                            return !session.cancelled;
+                        }
+                    });
+                } catch (InterruptedException ignored) {
+                    // Cancelled
+                } catch (Exception e) {
+                    session.error = e;
+                } finally {
+                    if (session.cancelled) {
+                        // Nobody reads a cancelled session; waiting for room would pin this thread
+                        session.queue.clear();
+                        session.queue.offer(END);
+                    } else {
+                        try {
+                            session.queue.put(END);
+                        } catch (InterruptedException ignored) {
+                            // Cancelled while waiting for room
+                            session.queue.clear();
+                            session.queue.offer(END);
+                        }
+                    }
+                }
+            }
+        });
+        return cursor;
+    }
+
+    /**
+     * Returns the next page of a listing. The result's cursor is null once the listing is complete.
+     * The page may be empty if the plugin hasn't produced anything yet; ask again with the cursor.
+     */
+    public PluginLsResult next(String cursor) throws InterruptedException {
+        expireSessions();
+        final Session session = cursor != null ? mSessions.get(cursor) : null;
+        if (session == null)
+            return PluginLsResult.failed(new PluginError(PluginError.ERROR_NOT_FOUND,
+                    "Unknown or expired listing cursor: " + cursor));
+        session.lastAccess = System.currentTimeMillis();
+
+        final List<PluginFile> page = new ArrayList<>(session.pageSize);
+        boolean done = false;
+        PluginFile file = session.queue.poll(PAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+        final long deadline = System.currentTimeMillis() + PAGE_LINGER;
+        while (file != null) {
+            if (file == END) {
+                done = true;
+                break;
+            }
+            page.add(file);
+            if (page.size() >= session.pageSize) break;
+            file = session.queue.poll();
+            if (file == null) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining > 0)
+                    file = session.queue.poll(remaining, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (done) {
+            mSessions.remove(cursor);
+            if (session.error != null)
+                return PluginLsResult.failed(PluginError.from(session.error), page.isEmpty() ? null : page);
+            return new PluginLsResult(null, page, null);
+        }
+        return new PluginLsResult(null, page, cursor);
+    }
+
+    public void cancel(String cursor) {
+        final Session session = cursor != null ? mSessions.remove(cursor) : null;
+        if (session != null)
+            session.cancel();
+    }
+
+    public void shutdown() {
+        for (Session session : mSessions.values())
+            session.cancel();
+        mSessions.clear();
+    }
+
+    private void expireSessions() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Session> iterator = mSessions.values().iterator();
+        while (iterator.hasNext()) {
+            final Session session = iterator.next();
+            if (now - session.lastAccess > SESSION_TIMEOUT) {
+                session.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class Session {
+
+        final int pageSize;
+        final BlockingQueue<PluginFile> queue;
+        volatile boolean cancelled;
+        volatile Exception error;
+        volatile long lastAccess = System.currentTimeMillis();
+        volatile Future<?> future;
+
+        Session(int pageSize) {
+            this.pageSize = pageSize;
+            // One page buffered ahead of the consumer
+            this.queue = new ArrayBlockingQueue<>(pageSize * 2);
+        }
+
+        void cancel() {
+            cancelled = true;
+            final Future<?> f = future;
+            if (f != null)
+                f.cancel(true);
+        }
+    }
+}
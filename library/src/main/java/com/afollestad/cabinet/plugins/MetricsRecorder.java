@@ -0,0 +1,107 @@
+package com.afollestad.cabinet.plugins;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records latency histograms and counters for the calls made into a PluginService. Recording is
+ * lock-free, and costs a single volatile read per call while disabled.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class MetricsRecorder {
+
+    private volatile boolean mEnabled;
+    private final ConcurrentMap<String, Stats> mStats = new ConcurrentHashMap<>();
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Counts a call as in flight. Returns whether it was, which is passed on to
+     * {@link #end(String, boolean, long, boolean, long)} so that metrics being toggled while the
+     * call runs doesn't throw off the in-flight count.
+     */
+    public boolean begin(String operation) {
+        if (!mEnabled) return false;
+        stats(operation).inFlight.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @param begun What {@link #begin(String)} returned. Calls that weren't counted aren't
+     *              recorded either, since they weren't timed.
+     */
+    public void end(String operation, boolean begun, long durationNanos, boolean success, long bytes) {
+        if (!begun) return;
+        stats(operation).inFlight.decrementAndGet();
+        record(operation, durationNanos, success, bytes);
+    }
+
+    /**
+     * Records a measurement that wasn't tracked with {@link #begin(String)}.
+     */
+    public void record(String operation, long durationNanos, boolean success, long bytes) {
+        if (!mEnabled) return;
+        final long micros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        final Stats stats = stats(operation);
+        stats.count.incrementAndGet();
+        if (!success)
+            stats.errors.incrementAndGet();
+        if (bytes > 0)
+            stats.bytes.addAndGet(bytes);
+        stats.totalMicros.addAndGet(micros);
+        stats.buckets.incrementAndGet(PluginMetrics.bucketIndex(micros));
+    }
+
+    private Stats stats(String operation) {
+        Stats stats = mStats.get(operation);
+        if (stats == null) {
+            final Stats created = new Stats();
+            stats = mStats.putIfAbsent(operation, created);
+            if (stats == null)
+                stats = created;
+        }
+        return stats;
+    }
+
+    public PluginMetrics snapshot() {
+        final List<PluginMetrics.Operation> operations = new ArrayList<>(mStats.size());
+        for (Map.Entry<String, Stats> entry : mStats.entrySet()) {
+            final Stats stats = entry.getValue();
+            final long[] buckets = new long[PluginMetrics.BUCKET_COUNT];
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = stats.buckets.get(i);
+            operations.add(new PluginMetrics.Operation(entry.getKey(), stats.count.get(), stats.errors.get(),
+                    stats.inFlight.get(), stats.bytes.get(), stats.totalMicros.get(), buckets));
+        }
+        return new PluginMetrics(mEnabled, operations);
+    }
+
+    public void dump(PrintWriter writer) {
+        writer.println("Metrics (" + (mEnabled ? "enabled" : "disabled") + "):");
+        for (PluginMetrics.Operation op : snapshot().getOperations())
+            writer.println("  " + op);
+    }
+
+    private static class Stats {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong inFlight = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong totalMicros = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(PluginMetrics.BUCKET_COUNT);
+    }
+}
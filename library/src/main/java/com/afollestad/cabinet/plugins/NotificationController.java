@@ -0,0 +1,189 @@
+package com.afollestad.cabinet.plugins;
+
+import android.app.PendingIntent;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.widget.Toast;
+
+/**
+ * Owns the foreground notification of a PluginService. Callers only describe the state they want
+ * shown; the notification is posted from the main thread at most every {@link #MIN_INTERVAL}
+ * milliseconds, and only when the state actually changed. The builders and their PendingIntents
+ * are created once.
+ * <p/>
+ * Uploads are counted as a batch: while any are running, the notification shows how many of the
+ * batch have finished, and it goes back to the previous status once the last one ends.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class NotificationController {
+
+    private final static long MIN_INTERVAL = 500;
+
+    private final PluginService mService;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private NotificationCompat.Builder mBuilder;
+    private NotificationCompat.Builder mNoExitBuilder;
+
+    // Guarded by this
+    private String mStatus;
+    private boolean mAllowExit = true;
+    private int mUploadsRunning;
+    private int mUploadsFinished;
+    private int mUploadsTotal;
+    private boolean mScheduled;
+
+    // Written on the main thread
+    private volatile State mPosted;
+    private volatile long mPostedAt;
+
+    public NotificationController(PluginService service) {
+        mService = service;
+    }
+
+    public void setStatus(String status, boolean allowExit) {
+        synchronized (this) {
+            mStatus = status;
+            mAllowExit = allowExit;
+        }
+        schedule();
+    }
+
+    public void beginUpload() {
+        synchronized (this) {
+            if (mUploadsRunning == 0) {
+                // A new batch
+                mUploadsFinished = 0;
+                mUploadsTotal = 0;
+            }
+            mUploadsRunning++;
+            mUploadsTotal++;
+        }
+        schedule();
+    }
+
+    public void endUpload() {
+        synchronized (this) {
+            mUploadsRunning = Math.max(0, mUploadsRunning - 1);
+            mUploadsFinished++;
+        }
+        schedule();
+    }
+
+    /**
+     * Drops any pending update, called when the service leaves the foreground.
+     */
+    public void cancel() {
+        synchronized (this) {
+            mScheduled = false;
+        }
+        mHandler.removeCallbacks(mPost);
+        mPosted = null;
+    }
+
+    private void schedule() {
+        if (mService.getForegroundId() <= 0) return;
+        synchronized (this) {
+            if (mScheduled) return;
+            mScheduled = true;
+        }
+        final long wait = mPostedAt + MIN_INTERVAL - SystemClock.uptimeMillis();
+        if (wait > 0)
+            mHandler.postDelayed(mPost, wait);
+        else
+            mHandler.post(mPost);
+    }
+
+    private final Runnable mPost = new Runnable() {
+        @Override
+        public void run() {
+            final State state;
+            synchronized (NotificationController.this) {
+                if (!mScheduled) return;
+                mScheduled = false;
+                state = new State(mStatus, mAllowExit, mUploadsRunning > 0 ? mUploadsFinished : -1, mUploadsTotal);
+            }
+            if (state.equals(mPosted)) return;
+            try {
+                final NotificationCompat.Builder builder = getBuilder(state.allowExit);
+                if (state.uploadsFinished >= 0) {
+                    builder.setContentText(mService.getString(R.string.uploading_progress,
+                            state.uploadsFinished + 1, state.uploadsTotal))
+                            .setProgress(state.uploadsTotal, state.uploadsFinished, false);
+                } else {
+                    builder.setContentText(state.status != null ? state.status : mService.getString(R.string.disconnected))
+                            .setProgress(0, 0, false);
+                }
+                mService.startForeground(mService.getForegroundId(), builder.build());
+                mPosted = state;
+                mPostedAt = SystemClock.uptimeMillis();
+            } catch (Exception e) {
+                Toast.makeText(mService, e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
+            }
+        }
+    };
+
+    private NotificationCompat.Builder getBuilder(boolean allowExit) throws Exception {
+        if (allowExit && mBuilder != null)
+            return mBuilder;
+        else if (!allowExit && mNoExitBuilder != null)
+            return mNoExitBuilder;
+
+        final PendingIntent mainIntent = PendingIntent.getActivity(mService, 1001,
+                new Intent(PluginConstants.VIEW_PLUGIN_ACTION)
+                        .setComponent(mService.getMainAppComponent())
+                        .putExtra(PluginConstants.EXTRA_PACKAGE, mService.getPackageName())
+                        .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        final ServiceInfo info = mService.getServiceInfo();
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(mService)
+                .setContentTitle(info.loadLabel(mService.getPackageManager()))
+                .setSmallIcon(info.getIconResource())
+                .setContentIntent(mainIntent)
+                .setOnlyAlertOnce(true);
+        if (allowExit) {
+            final PendingIntent exitIntent = PendingIntent.getService(mService, 1002,
+                    new Intent(PluginConstants.EXIT_ACTION).setComponent(mService.getComponentName()),
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+            builder.addAction(R.drawable.ic_stat_navigation_close, mService.getString(R.string.exit), exitIntent);
+            mBuilder = builder;
+        } else {
+            mNoExitBuilder = builder;
+        }
+        return builder;
+    }
+
+    private static class State {
+        final String status;
+        final boolean allowExit;
+        final int uploadsFinished;
+        final int uploadsTotal;
+
+        State(String status, boolean allowExit, int uploadsFinished, int uploadsTotal) {
+            this.status = status;
+            this.allowExit = allowExit;
+            this.uploadsFinished = uploadsFinished;
+            this.uploadsTotal = uploadsTotal;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof State)) return false;
+            final State other = (State) o;
+            return (status == null ? other.status == null : status.equals(other.status)) &&
+                    allowExit == other.allowExit &&
+                    uploadsFinished == other.uploadsFinished &&
+                    uploadsTotal == other.uploadsTotal;
+        }
+
+        @Override
+        public int hashCode() {
+            return (status != null ? status.hashCode() : 0) * 31 + uploadsFinished * 7 + uploadsTotal;
+        }
+    }
+}
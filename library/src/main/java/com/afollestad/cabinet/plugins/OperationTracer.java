@@ -0,0 +1,146 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Traces individual calls into a PluginService. Every call gets a request ID and a top level span,
+ * plugins can nest their own spans inside it. Finished spans are kept in a bounded ring buffer
+ * which can be exported in the Chrome trace event format (chrome://tracing, Perfetto UI), and
+ * android.os.Trace sections are emitted on API 18+ so calls also show up in systrace.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class OperationTracer {
+
+    private final static int CAPACITY = 2048;
+    private final static int MAX_SECTION_NAME = 127;
+    private final static boolean SYSTRACE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+    private volatile boolean mEnabled;
+    private final AtomicLong mRequestIds = new AtomicLong();
+    private final AtomicLong mWriteIndex = new AtomicLong();
+    private final AtomicReferenceArray<Span> mSpans = new AtomicReferenceArray<>(CAPACITY);
+    private final ThreadLocal<Request> mCurrent = new ThreadLocal<>();
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Starts a request on the calling thread, with a top level span named after the operation.
+     * Returns whether it did; only then does {@link #endRequest(boolean)} need to be called.
+     */
+    public boolean beginRequest(String operation) {
+        if (!mEnabled) return false;
+        final Request request = new Request(mRequestIds.incrementAndGet(), operation);
+        mCurrent.set(request);
+        beginSpan(request, operation);
+        return true;
+    }
+
+    public void endRequest(boolean success) {
+        final Request request = mCurrent.get();
+        if (request == null) return;
+        // Close anything the plugin left open, then the top level span
+        while (request.open.size() > 1)
+            endSpan(request, null);
+        endSpan(request, success ? null : "error");
+        mCurrent.remove();
+    }
+
+    /**
+     * Starts a span nested in the request running on the calling thread. No-op outside of a request.
+     */
+    public void beginSpan(String name) {
+        final Request request = mCurrent.get();
+        if (request != null)
+            beginSpan(request, name);
+    }
+
+    public void endSpan() {
+        final Request request = mCurrent.get();
+        // Never end the top level span here, that's endRequest()'s job
+        if (request != null && request.open.size() > 1)
+            endSpan(request, null);
+    }
+
+    private void beginSpan(Request request, String name) {
+        request.open.add(new Span(request.id, request.operation, name, Process.myTid(), System.nanoTime()));
+        if (SYSTRACE)
+            Trace.beginSection(name.length() > MAX_SECTION_NAME ? name.substring(0, MAX_SECTION_NAME) : name);
+    }
+
+    private void endSpan(Request request, String status) {
+        final Span span = request.open.remove(request.open.size() - 1);
+        span.durationNanos = System.nanoTime() - span.startNanos;
+        span.status = status;
+        if (SYSTRACE)
+            Trace.endSection();
+        final int slot = (int) (mWriteIndex.getAndIncrement() % CAPACITY);
+        mSpans.set(slot, span);
+    }
+
+    /**
+     * Exports the spans currently in the ring buffer as Chrome trace event JSON.
+     */
+    public String exportChromeTrace() {
+        final int pid = Process.myPid();
+        final StringBuilder sb = new StringBuilder("{\"traceEvents\":[");
+        boolean first = true;
+        for (int i = 0; i < CAPACITY; i++) {
+            final Span span = mSpans.get(i);
+            if (span == null) continue;
+            if (!first) sb.append(',');
+            first = false;
+            sb.append("{\"name\":").append(JSONObject.quote(span.name))
+                    .append(",\"cat\":").append(JSONObject.quote(span.operation))
+                    .append(",\"ph\":\"X\",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(span.tid)
+                    .append(",\"ts\":").append(TimeUnit.NANOSECONDS.toMicros(span.startNanos))
+                    .append(",\"dur\":").append(TimeUnit.NANOSECONDS.toMicros(span.durationNanos))
+                    .append(",\"args\":{\"request\":").append(span.requestId);
+            if (span.status != null)
+                sb.append(",\"status\":").append(JSONObject.quote(span.status));
+            sb.append("}}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static class Request {
+        final long id;
+        final String operation;
+        final ArrayList<Span> open = new ArrayList<>(4);
+
+        Request(long id, String operation) {
+            this.id = id;
+            this.operation = operation;
+        }
+    }
+
+    private static class Span {
+        final long requestId;
+        final String operation;
+        final String name;
+        final int tid;
+        final long startNanos;
+        long durationNanos;
+        String status;
+
+        Span(long requestId, String operation, String name, int tid, long startNanos) {
+            this.requestId = requestId;
+            this.operation = operation;
+            this.name = name;
+            this.tid = tid;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.Parcel;
+
+/**
+ * Marks the parts of a parcel that older versions of this library didn't write, with flags saying
+ * which optional fields follow. The marker can't be mistaken for what older versions wrote in its
+ * place, either nothing or the length of a string (never below -1), so a parcel is read correctly
+ * wherever it sits in a larger one, unlike checking for data left at the end.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class ParcelHeader {
+
+    private final static int MARKER = 0xCAB10000;
+    private final static int MARKER_MASK = 0xFFFF0000;
+
+    /**
+     * Returned by {@link #read(Parcel)} if there's no header; nothing was read.
+     */
+    public final static int NONE = -1;
+
+    private ParcelHeader() {
+    }
+
+    public static void write(Parcel dest, int flags) {
+        dest.writeInt(MARKER | flags);
+    }
+
+    /**
+     * Returns the flags of the header at the current position, or {@link #NONE} if the parcel was
+     * written by an older version of the library, in which case the position is left unchanged.
+     */
+    public static int read(Parcel in) {
+        if (in.dataAvail() < 4)
+            return NONE;
+        final int position = in.dataPosition();
+        final int header = in.readInt();
+        if ((header & MARKER_MASK) == MARKER)
+            return header & ~MARKER_MASK;
+        in.setDataPosition(position);
+        return NONE;
+    }
+}
@@ -0,0 +1,148 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Moves large marshalled payloads out of the Binder transaction buffer. Small payloads are appended
+ * to the destination Parcel inline; anything larger than {@link #INLINE_LIMIT} is streamed through a
+ * pipe, and only the read side's file descriptor crosses Binder.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class ParcelPayload {
+
+    /**
+     * The Binder transaction buffer is 1MB and shared by every transaction in flight for the
+     * process, so anything past a fraction of it goes out of band.
+     */
+    final static int INLINE_LIMIT = 64 * 1024;
+
+    private final static int MODE_INLINE = 0;
+    private final static int MODE_PIPE = 1;
+
+    private static volatile ExecutorService sWriters;
+
+    private ParcelPayload() {
+    }
+
+    /**
+     * Sets the executor that pipes are written from, owned by the running {@link PluginService}.
+     * Without one, payloads are written inline.
+     */
+    static void setWriters(ExecutorService writers) {
+        sWriters = writers;
+    }
+
+    /**
+     * Writes the contents of payload to dest, choosing inline or pipe encoding based on its size.
+     */
+    public static void write(Parcel dest, Parcel payload) {
+        final int size = payload.dataSize();
+        final ExecutorService writers = sWriters;
+        if (size <= INLINE_LIMIT || writers == null) {
+            writeInline(dest, payload, size);
+            return;
+        }
+
+        final byte[] data = payload.marshall();
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            // Fall back to the Binder buffer, it may still fit
+            Log.w("ParcelPayload", "Unable to create pipe, writing " + size + " bytes inline.", e);
+            writeInline(dest, payload, size);
+            return;
+        }
+
+        final ParcelFileDescriptor writeSide = pipe[1];
+        try {
+            writers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    OutputStream os = null;
+                    try {
+                        os = new ParcelFileDescriptor.AutoCloseOutputStream(writeSide);
+                        // Through a channel so that the service shutting down interrupts the write
+                        final WritableByteChannel channel = Channels.newChannel(os);
+                        final ByteBuffer buffer = ByteBuffer.wrap(data);
+                        while (buffer.hasRemaining())
+                            channel.write(buffer);
+                    } catch (IOException e) {
+                        Log.w("ParcelPayload", "Failed to write payload to pipe.", e);
+                    } finally {
+                        closeQuietly(os != null ? os : writeSide);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The service is shutting down
+            closeQuietly(pipe[0]);
+            closeQuietly(writeSide);
+            writeInline(dest, payload, size);
+            return;
+        }
+
+        dest.writeInt(MODE_PIPE);
+        dest.writeInt(data.length);
+        // Closes our copy of the read side once it's been written to the reply
+        pipe[0].writeToParcel(dest, Parcelable.PARCELABLE_WRITE_RETURN_VALUE);
+    }
+
+    private static void writeInline(Parcel dest, Parcel payload, int size) {
+        dest.writeInt(MODE_INLINE);
+        dest.appendFrom(payload, 0, size);
+    }
+
+    /**
+     * Returns a Parcel positioned at the start of the payload written by {@link #write(Parcel, Parcel)}.
+     * For inline payloads this is the source Parcel itself; call {@link #recycle(Parcel, Parcel)} when done.
+     */
+    public static Parcel read(Parcel in) {
+        if (in.readInt() == MODE_INLINE)
+            return in;
+
+        final int length = in.readInt();
+        final ParcelFileDescriptor fd = ParcelFileDescriptor.CREATOR.createFromParcel(in);
+        final byte[] data = new byte[length];
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new ParcelFileDescriptor.AutoCloseInputStream(fd));
+            is.readFully(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read " + length + " byte payload from pipe.", e);
+        } finally {
+            closeQuietly(is != null ? is : fd);
+        }
+
+        final Parcel payload = Parcel.obtain();
+        payload.unmarshall(data, 0, data.length);
+        payload.setDataPosition(0);
+        return payload;
+    }
+
+    public static void recycle(Parcel in, Parcel payload) {
+        if (payload != in)
+            payload.recycle();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
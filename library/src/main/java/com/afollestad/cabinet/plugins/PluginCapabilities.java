@@ -0,0 +1,238 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.Serializable;
+
+/**
+ * Describes what a plugin supports, so the main app can pick the fastest path for each operation
+ * up front instead of finding out through errors. Returned by getCapabilities(); the same values
+ * can be declared as meta-data on the plugin's service tag, so they're readable without binding:
+ * <p/>
+ * <pre>
+ * &lt;meta-data android:name="com.afollestad.cabinet.plugins.CAPABILITIES" android:value="chmod,chown" /&gt;
+ * &lt;meta-data android:name="com.afollestad.cabinet.plugins.MAX_CONCURRENCY" android:value="4" /&gt;
+ * </pre>
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class PluginCapabilities implements Parcelable, Serializable {
+
+    private static final long serialVersionUID = 2568771528989642947L;
+
+    /**
+     * Version 1 is the original interface; version 2 adds everything negotiated here; version 3
+     * adds listFilesAggregated().
+     */
+    public final static int PROTOCOL_VERSION = 3;
+
+    public final static int CHMOD = 1;
+    public final static int CHOWN = 1 << 1;
+    /**
+     * move() is done by the backend, without transferring the file.
+     */
+    public final static int SERVER_SIDE_MOVE = 1 << 2;
+    /**
+     * openReadStream() streams from the backend rather than through a cached copy.
+     */
+    public final static int STREAMED_READ = 1 << 3;
+    /**
+     * uploadStream() streams to the backend rather than through a cached copy.
+     */
+    public final static int STREAMED_UPLOAD = 1 << 4;
+    /**
+     * listFilesPaged() streams from the backend rather than paging a complete listing.
+     */
+    public final static int STREAMED_LISTING = 1 << 5;
+    /**
+     * existsAll() checks every path in one backend request.
+     */
+    public final static int BATCH_EXISTS = 1 << 6;
+    /**
+     * The plugin's backend understands the library's transfer compression.
+     */
+    public final static int TRANSFER_COMPRESSION = 1 << 7;
+    /**
+     * listFilesAggregated() lists every account, not only the current one.
+     */
+    public final static int MULTI_ACCOUNT_LISTING = 1 << 8;
+
+    final static String META_CAPABILITIES = "com.afollestad.cabinet.plugins.CAPABILITIES";
+    final static String META_MAX_BATCH_SIZE = "com.afollestad.cabinet.plugins.MAX_BATCH_SIZE";
+    final static String META_MAX_CONCURRENCY = "com.afollestad.cabinet.plugins.MAX_CONCURRENCY";
+    final static String META_PREFERRED_CHUNK_SIZE = "com.afollestad.cabinet.plugins.PREFERRED_CHUNK_SIZE";
+
+    private final int mProtocolVersion;
+    private final int mFlags;
+    private final int mMaxBatchSize;
+    private final int mMaxConcurrency;
+    private final int mPreferredChunkSize;
+
+    public PluginCapabilities(Parcel in) {
+        mProtocolVersion = in.readInt();
+        mFlags = in.readInt();
+        mMaxBatchSize = in.readInt();
+        mMaxConcurrency = in.readInt();
+        mPreferredChunkSize = in.readInt();
+    }
+
+    private PluginCapabilities(Builder builder) {
+        mProtocolVersion = PROTOCOL_VERSION;
+        mFlags = builder.flags;
+        mMaxBatchSize = builder.maxBatchSize;
+        mMaxConcurrency = builder.maxConcurrency;
+        mPreferredChunkSize = builder.preferredChunkSize;
+    }
+
+    public int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean supports(int flag) {
+        return (mFlags & flag) == flag;
+    }
+
+    /**
+     * The largest number of paths the plugin wants in a single batch call, 0 if unlimited.
+     */
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * The number of concurrent calls the plugin's backend handles well, 0 if unknown.
+     */
+    public int getMaxConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    /**
+     * The transfer chunk size the backend works best with, in bytes; 0 if it doesn't matter.
+     */
+    public int getPreferredChunkSize() {
+        return mPreferredChunkSize;
+    }
+
+    static int parseFlags(String names) {
+        int flags = 0;
+        if (names == null) return flags;
+        for (String name : names.split(",")) {
+            switch (name.trim()) {
+                case "chmod":
+                    flags |= CHMOD;
+                    break;
+                case "chown":
+                    flags |= CHOWN;
+                    break;
+                case "server_side_move":
+                    flags |= SERVER_SIDE_MOVE;
+                    break;
+                case "streamed_read":
+                    flags |= STREAMED_READ;
+                    break;
+                case "streamed_upload":
+                    flags |= STREAMED_UPLOAD;
+                    break;
+                case "streamed_listing":
+                    flags |= STREAMED_LISTING;
+                    break;
+                case "batch_exists":
+                    flags |= BATCH_EXISTS;
+                    break;
+                case "transfer_compression":
+                    flags |= TRANSFER_COMPRESSION;
+                    break;
+                case "multi_account_listing":
+                    flags |= MULTI_ACCOUNT_LISTING;
+                    break;
+            }
+        }
+        return flags;
+    }
+
+    public static class Builder {
+
+        protected int flags;
+        protected int maxBatchSize;
+        protected int maxConcurrency;
+        protected int preferredChunkSize;
+
+        public Builder() {
+        }
+
+        /**
+         * Starts from the values declared in a service's meta-data.
+         */
+        public Builder(Bundle metaData) {
+            if (metaData != null) {
+                flags = parseFlags(metaData.getString(META_CAPABILITIES));
+                maxBatchSize = metaData.getInt(META_MAX_BATCH_SIZE, 0);
+                maxConcurrency = metaData.getInt(META_MAX_CONCURRENCY, 0);
+                preferredChunkSize = metaData.getInt(META_PREFERRED_CHUNK_SIZE, 0);
+            }
+        }
+
+        public Builder flags(int flags) {
+            this.flags |= flags;
+            return this;
+        }
+
+        public Builder maxBatchSize(int maxBatchSize) {
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        public Builder maxConcurrency(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        public Builder preferredChunkSize(int preferredChunkSize) {
+            this.preferredChunkSize = preferredChunkSize;
+            return this;
+        }
+
+        public PluginCapabilities build() {
+            return new PluginCapabilities(this);
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mProtocolVersion);
+        dest.writeInt(mFlags);
+        dest.writeInt(mMaxBatchSize);
+        dest.writeInt(mMaxConcurrency);
+        dest.writeInt(mPreferredChunkSize);
+    }
+
+    public static final Creator<PluginCapabilities> CREATOR = new Creator<PluginCapabilities>() {
+        @Override
+        public PluginCapabilities[] newArray(int size) {
+            return new PluginCapabilities[size];
+        }
+
+        @Override
+        public PluginCapabilities createFromParcel(Parcel source) {
+            return new PluginCapabilities(source);
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "PluginCapabilities: v" + mProtocolVersion + ", flags=0x" + Integer.toHexString(mFlags) +
+                ", maxBatchSize=" + mMaxBatchSize + ", maxConcurrency=" + mMaxConcurrency +
+                ", preferredChunkSize=" + mPreferredChunkSize;
+    }
+}
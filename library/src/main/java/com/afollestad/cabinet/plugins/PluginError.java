@@ -0,0 +1,160 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.Parcel;
+
+import java.io.Serializable;
+
+/**
+ * Details of a failed call, carried by every result alongside its error message: what kind of
+ * failure it was, whether the same call is worth retrying, and how long to wait first. Plugins
+ * report these by throwing a {@link PluginException}; anything else is classified by
+ * {@link #from(Throwable)}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class PluginError implements Serializable {
+
+    private static final long serialVersionUID = 2568771528989642944L;
+
+    /**
+     * Unclassified, e.g. from a plugin built against an older version of this library.
+     */
+    public final static int ERROR_UNKNOWN = 0;
+    /**
+     * The backend couldn't be reached. Retryable.
+     */
+    public final static int ERROR_NETWORK = 1;
+    /**
+     * The backend didn't respond in time. Retryable.
+     */
+    public final static int ERROR_TIMEOUT = 2;
+    /**
+     * Any other I/O failure while talking to the backend. Retryable.
+     */
+    public final static int ERROR_IO = 3;
+    /**
+     * The backend is throttling requests; see {@link #getRetryAfter()}. Retryable.
+     */
+    public final static int ERROR_RATE_LIMITED = 4;
+    /**
+     * The backend is down or overloaded, or too many calls failed and the plugin stopped sending
+     * it more for a while; see {@link #getRetryAfter()}. Retryable.
+     */
+    public final static int ERROR_UNAVAILABLE = 5;
+    /**
+     * The account's credentials expired or were revoked, see {@link #needsAuthRefresh()}.
+     */
+    public final static int ERROR_AUTH_EXPIRED = 6;
+    public final static int ERROR_PERMISSION_DENIED = 7;
+    public final static int ERROR_NOT_FOUND = 8;
+    public final static int ERROR_ALREADY_EXISTS = 9;
+    /**
+     * The remote file changed since it was last seen.
+     */
+    public final static int ERROR_CONFLICT = 10;
+    public final static int ERROR_NO_SPACE = 11;
+    public final static int ERROR_UNSUPPORTED = 12;
+    public final static int ERROR_NOT_CONNECTED = 13;
+    public final static int ERROR_CANCELLED = 14;
+
+    private final int mCode;
+    private final String mMessage;
+    private final boolean mRetryable;
+    private final long mRetryAfter;
+
+    public PluginError(int code, String message) {
+        this(code, message, isTransient(code), 0);
+    }
+
+    public PluginError(int code, String message, boolean retryable, long retryAfterMillis) {
+        mCode = code;
+        mMessage = message;
+        mRetryable = retryable;
+        mRetryAfter = Math.max(0, retryAfterMillis);
+    }
+
+    /**
+     * Whether failures with a code are transient, and retryable unless the plugin says otherwise.
+     */
+    public static boolean isTransient(int code) {
+        switch (code) {
+            case ERROR_NETWORK:
+            case ERROR_TIMEOUT:
+            case ERROR_IO:
+            case ERROR_RATE_LIMITED:
+            case ERROR_UNAVAILABLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static PluginError from(Throwable e) {
+        return PluginException.from(e).toError();
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    public String getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * Whether the same call may succeed if it's made again, after {@link #getRetryAfter()}.
+     */
+    public boolean isRetryable() {
+        return mRetryable;
+    }
+
+    /**
+     * The minimum time in milliseconds to wait before retrying, or 0 if the backend didn't say.
+     */
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    /**
+     * Whether the call failed because the account's credentials need to be refreshed, rather than
+     * because of the call itself. The account doesn't have to be added again.
+     */
+    public boolean needsAuthRefresh() {
+        return mCode == ERROR_AUTH_EXPIRED;
+    }
+
+    @Override
+    public String toString() {
+        return "PluginError{code=" + mCode + ", retryable=" + mRetryable +
+                ", retryAfter=" + mRetryAfter + ", message=" + mMessage + "}";
+    }
+
+    private final static int FLAG_DETAILS = 1;
+
+    /**
+     * Written after everything else in a result's parcel, behind a {@link ParcelHeader}, so apps
+     * built against older versions of the library ignore it, and results from older plugins still
+     * read, as {@link #ERROR_UNKNOWN}.
+     */
+    static void write(Parcel dest, PluginError error) {
+        ParcelHeader.write(dest, error != null ? FLAG_DETAILS : 0);
+        if (error == null) return;
+        dest.writeInt(error.mCode);
+        dest.writeInt(error.mRetryable ? 1 : 0);
+        dest.writeLong(error.mRetryAfter);
+    }
+
+    static PluginError read(Parcel in, String message) {
+        final int flags = ParcelHeader.read(in);
+        if (flags == ParcelHeader.NONE || (flags & FLAG_DETAILS) == 0)
+            return message != null ? new PluginError(ERROR_UNKNOWN, message) : null;
+        final int code = in.readInt();
+        final boolean retryable = in.readInt() != 0;
+        final long retryAfter = in.readLong();
+        return new PluginError(code, message, retryable, retryAfter);
+    }
+
+    static PluginError of(String message) {
+        return message != null ? new PluginError(ERROR_UNKNOWN, message) : null;
+    }
+}
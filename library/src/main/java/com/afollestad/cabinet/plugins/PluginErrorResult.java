@@ -10,24 +10,43 @@ import java.io.Serializable;
  *
  * @author Aidan Follestad (afollestad)
  */
-class PluginErrorResult implements Parcelable, Serializable {
+public class PluginErrorResult implements Parcelable, Serializable {
 
     private static final long serialVersionUID = 2568371528989642943L;
 
     private final String mError;
+    private final PluginError mErrorDetails;
 
     public PluginErrorResult(Parcel in) {
         mError = in.readString();
+        mErrorDetails = PluginError.read(in, mError);
     }
 
     public PluginErrorResult(String error) {
         mError = error;
+        mErrorDetails = PluginError.of(error);
+    }
+
+    private PluginErrorResult(PluginError error) {
+        mError = error.getMessage();
+        mErrorDetails = error;
+    }
+
+    public static PluginErrorResult failed(PluginError error) {
+        return new PluginErrorResult(error);
     }
 
     public String getError() {
         return mError;
     }
 
+    /**
+     * Details of the error, null if the call succeeded.
+     */
+    public PluginError getErrorDetails() {
+        return mErrorDetails;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -36,6 +55,7 @@ class PluginErrorResult implements Parcelable, Serializable {
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(mError);
+        PluginError.write(dest, mErrorDetails);
     }
 
     public static final Creator<PluginErrorResult> CREATOR = new Creator<PluginErrorResult>() {
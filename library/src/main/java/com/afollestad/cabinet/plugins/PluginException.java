@@ -0,0 +1,103 @@
+package com.afollestad.cabinet.plugins;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedByInterruptException;
+
+/**
+ * Thrown by plugins to say how a call failed, see {@link PluginError} for the codes. For
+ * example, a plugin whose access token expired throws
+ * {@code new PluginException(PluginError.ERROR_AUTH_EXPIRED, "Token expired")}, and one that's
+ * being throttled passes the backend's Retry-After to
+ * {@link #PluginException(int, String, long)}.
+ * <p/>
+ * Other exceptions still work; they're classified by type (e.g. a SocketTimeoutException is a
+ * retryable {@link PluginError#ERROR_TIMEOUT}).
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class PluginException extends Exception {
+
+    private static final long serialVersionUID = 2568771528989642948L;
+
+    private final int mCode;
+    private final boolean mRetryable;
+    private final long mRetryAfter;
+
+    public PluginException(int code, String message) {
+        this(code, message, PluginError.isTransient(code), 0, null);
+    }
+
+    public PluginException(int code, String message, Throwable cause) {
+        this(code, message, PluginError.isTransient(code), 0, cause);
+    }
+
+    public PluginException(int code, String message, long retryAfterMillis) {
+        this(code, message, PluginError.isTransient(code), retryAfterMillis, null);
+    }
+
+    public PluginException(int code, String message, boolean retryable, long retryAfterMillis, Throwable cause) {
+        super(message, cause);
+        mCode = code;
+        mRetryable = retryable;
+        mRetryAfter = Math.max(0, retryAfterMillis);
+    }
+
+    public int getCode() {
+        return mCode;
+    }
+
+    public boolean isRetryable() {
+        return mRetryable;
+    }
+
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+
+    public boolean needsAuthRefresh() {
+        return mCode == PluginError.ERROR_AUTH_EXPIRED;
+    }
+
+    public PluginError toError() {
+        return new PluginError(mCode, getLocalizedMessage(), mRetryable, mRetryAfter);
+    }
+
+    /**
+     * Returns e if it's a PluginException, otherwise a PluginException classified from its type.
+     */
+    public static PluginException from(Throwable e) {
+        if (e instanceof PluginException)
+            return (PluginException) e;
+        return new PluginException(classify(e), e.getLocalizedMessage(), e);
+    }
+
+    private static int classify(Throwable e) {
+        if (e instanceof UploadGuard.ConflictException)
+            return PluginError.ERROR_CONFLICT;
+        if (e instanceof FileNotFoundException)
+            return PluginError.ERROR_NOT_FOUND;
+        // Before InterruptedIOException, which it extends
+        if (e instanceof SocketTimeoutException)
+            return PluginError.ERROR_TIMEOUT;
+        if (e instanceof InterruptedIOException || e instanceof InterruptedException ||
+                e instanceof ClosedByInterruptException)
+            return PluginError.ERROR_CANCELLED;
+        if (e instanceof UnknownHostException || e instanceof ConnectException ||
+                e instanceof NoRouteToHostException || e instanceof SocketException)
+            return PluginError.ERROR_NETWORK;
+        if (e instanceof IOException)
+            return PluginError.ERROR_IO;
+        if (e instanceof SecurityException)
+            return PluginError.ERROR_PERMISSION_DENIED;
+        if (e instanceof UnsupportedOperationException)
+            return PluginError.ERROR_UNSUPPORTED;
+        return PluginError.ERROR_UNKNOWN;
+    }
+}
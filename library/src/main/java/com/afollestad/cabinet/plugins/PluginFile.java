@@ -5,8 +5,11 @@ import android.os.Parcelable;
 
 import org.json.JSONObject;
 
-import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Used to store file objects that are sent from the plugin service to the main app.
@@ -15,10 +18,10 @@ import java.io.Serializable;
  */
 public class PluginFile implements Parcelable, Serializable {
 
-    private static final long serialVersionUID = 5568771528989642943L;
+    private static final long serialVersionUID = 5568771528989642944L;
 
     private final String mPackage;
-    private final String mPath;
+    private final PluginPath mPath;
     private final String mThumbnail;
     private final long mCreated;
     private final long mModified;
@@ -27,24 +30,35 @@ public class PluginFile implements Parcelable, Serializable {
     private final boolean isHidden;
     private final String mPermissions;
     private PluginFile mParent;
+    private String mAccount;
 
     public PluginFile(Parcel in) {
-        mPackage = in.readString();
-        mPath = in.readString();
+        this(in, null, true);
+    }
+
+    private PluginFile(Parcel in, PluginFile parent, boolean readParent) {
+        mPackage = intern(in.readString());
+        final String path = in.readString();
         mThumbnail = in.readString();
         mCreated = in.readLong();
         mModified = in.readLong();
         isDir = in.readInt() == 1;
+        // Siblings share a parent, so only their own name needs to be looked up
+        mPath = PluginPath.of(parent != null ? parent.mPath : null, path, isDir);
         mLength = in.readLong();
         isHidden = in.readInt() == 1;
         mPermissions = in.readString();
-        mParent = in.readParcelable(PluginFile.class.getClassLoader());
+        mParent = readParent ? in.<PluginFile>readParcelable(PluginFile.class.getClassLoader()) : parent;
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        writeToParcel(dest, flags, true);
+    }
+
+    private void writeToParcel(Parcel dest, int flags, boolean writeParent) {
         dest.writeString(mPackage);
-        dest.writeString(mPath);
+        dest.writeString(getPath());
         dest.writeString(mThumbnail);
         dest.writeLong(mCreated);
         dest.writeLong(mModified);
@@ -52,12 +66,74 @@ public class PluginFile implements Parcelable, Serializable {
         dest.writeLong(mLength);
         dest.writeInt(isHidden ? 1 : 0);
         dest.writeString(mPermissions);
-        dest.writeParcelable(mParent, flags);
+        if (writeParent)
+            dest.writeParcelable(mParent, flags);
+    }
+
+    private final static int REF_NULL_ENTRY = -3;
+    private final static int REF_NEW_PARENT = -2;
+    private final static int REF_NO_PARENT = -1;
+
+    /**
+     * Writes a listing so that each distinct parent is only written once. Siblings reference the
+     * parent by index instead of re-marshalling the whole parent chain for every entry.
+     */
+    static void writeList(Parcel dest, List<PluginFile> files, int flags) {
+        if (files == null) {
+            dest.writeInt(-1);
+            return;
+        }
+        dest.writeInt(files.size());
+        final Map<PluginFile, Integer> parents = new IdentityHashMap<>();
+        for (PluginFile file : files) {
+            if (file == null) {
+                dest.writeInt(REF_NULL_ENTRY);
+                continue;
+            }
+            if (file.mParent == null) {
+                dest.writeInt(REF_NO_PARENT);
+            } else {
+                final Integer index = parents.get(file.mParent);
+                if (index != null) {
+                    dest.writeInt(index);
+                } else {
+                    dest.writeInt(REF_NEW_PARENT);
+                    file.mParent.writeToParcel(dest, flags, true);
+                    parents.put(file.mParent, parents.size());
+                }
+            }
+            file.writeToParcel(dest, flags, false);
+        }
+    }
+
+    /**
+     * Reads a listing written by {@link #writeList(Parcel, List, int)}. Siblings share a single
+     * parent instance.
+     */
+    static void readList(Parcel in, List<PluginFile> out) {
+        final int count = in.readInt();
+        if (count <= 0) return;
+        final List<PluginFile> parents = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final int ref = in.readInt();
+            if (ref == REF_NULL_ENTRY) {
+                out.add(null);
+                continue;
+            }
+            PluginFile parent = null;
+            if (ref == REF_NEW_PARENT) {
+                parent = new PluginFile(in, null, true);
+                parents.add(parent);
+            } else if (ref >= 0) {
+                parent = parents.get(ref);
+            }
+            out.add(new PluginFile(in, parent, false));
+        }
     }
 
     public PluginFile(JSONObject json) {
-        mPackage = json.optString("package");
-        mPath = json.optString("path");
+        mPackage = intern(json.optString("package"));
+        mPath = PluginPath.of(json.optString("path"), json.optBoolean("is_dir"));
         mThumbnail = json.optString("thumbnail");
         mCreated = json.optLong("created");
         mModified = json.optLong("modified");
@@ -67,11 +143,12 @@ public class PluginFile implements Parcelable, Serializable {
         if (json.has("parent"))
             mParent = new PluginFile(json.optJSONObject("parent"));
         mPermissions = json.optString("permissions");
+        mAccount = json.has("account") ? json.optString("account") : null;
     }
 
     private PluginFile(Builder builder) {
         mPackage = builder.packageName;
-        mPath = builder.path;
+        mPath = PluginPath.of(builder.path, builder.isDir);
         mThumbnail = builder.thumbnail;
         mCreated = builder.created;
         mModified = builder.modified;
@@ -82,12 +159,58 @@ public class PluginFile implements Parcelable, Serializable {
         mPermissions = builder.permissions;
     }
 
+    /**
+     * Used for lazily derived parent directories, skips the Builder.
+     */
+    private PluginFile(String packageName, PluginPath path) {
+        mPackage = packageName;
+        mPath = path;
+        mThumbnail = null;
+        mCreated = 0;
+        mModified = 0;
+        isDir = true;
+        mLength = -1;
+        isHidden = false;
+        mPermissions = null;
+    }
+
+    /**
+     * A copy of source tagged with an account, so the plugin's own instance isn't changed.
+     */
+    PluginFile(PluginFile source, String account) {
+        mPackage = source.mPackage;
+        mPath = source.mPath;
+        mThumbnail = source.mThumbnail;
+        mCreated = source.mCreated;
+        mModified = source.mModified;
+        isDir = source.isDir;
+        mLength = source.mLength;
+        isHidden = source.isHidden;
+        mPermissions = source.mPermissions;
+        mParent = source.mParent;
+        mAccount = account;
+    }
+
+    /**
+     * Every file in a listing carries the same package name, interning lets them share one instance.
+     */
+    private static String intern(String packageName) {
+        return packageName != null ? packageName.intern() : null;
+    }
+
     public String getPackage() {
         return mPackage;
     }
 
     public String getPath() {
-        return mPath;
+        return mPath != null ? mPath.getPath() : null;
+    }
+
+    /**
+     * Returns the last segment of the path, ignoring a trailing separator; empty for the root.
+     */
+    public String getName() {
+        return mPath != null ? mPath.getName() : null;
     }
 
     public String getThumbnail() {
@@ -115,16 +238,8 @@ public class PluginFile implements Parcelable, Serializable {
     }
 
     public PluginFile getParent() {
-        if (mParent == null && !mPath.equals("/")) {
-            Builder parentBuilder = new Builder(null, getPackage())
-                    .isDir(true)
-                    .hidden(false);
-            String tempPath = mPath;
-            if (tempPath.endsWith(File.separator))
-                tempPath = tempPath.substring(0, tempPath.length() - 1);
-            tempPath = tempPath.substring(0, tempPath.lastIndexOf(File.separatorChar));
-            mParent = parentBuilder.path(tempPath).build();
-        }
+        if (mParent == null && mPath != null && !mPath.isRoot())
+            mParent = new PluginFile(mPackage, mPath.getParent());
         return mParent;
     }
 
@@ -132,6 +247,18 @@ public class PluginFile implements Parcelable, Serializable {
         return mPermissions;
     }
 
+    /**
+     * The account the file was listed from, in listings that span accounts (see
+     * {@link PluginService#listFiles(String, PluginFile, PluginFileSink)}); null otherwise.
+     */
+    public String getAccount() {
+        return mAccount;
+    }
+
+    void setAccount(String account) {
+        mAccount = account;
+    }
+
     public static class Builder {
 
         protected final String packageName;
@@ -148,13 +275,17 @@ public class PluginFile implements Parcelable, Serializable {
 
         public Builder(PluginFile parent, String packageName) {
             this.parent = parent;
-            this.packageName = packageName;
+            this.packageName = intern(packageName);
         }
 
         public Builder(PluginFile parent, PluginService context) {
             this(parent, context.getPackageName());
         }
 
+        /**
+         * The path's directories are interned. The path is kept exactly as given, including
+         * trailing and repeated separators.
+         */
         public Builder path(String path) {
             this.path = path;
             return this;
@@ -218,7 +349,7 @@ public class PluginFile implements Parcelable, Serializable {
         JSONObject json = new JSONObject();
         try {
             json.put("package", mPackage);
-            json.put("path", mPath);
+            json.put("path", getPath());
             json.put("thumbnail", mThumbnail);
             json.put("created", mCreated);
             json.put("modified", mModified);
@@ -228,6 +359,8 @@ public class PluginFile implements Parcelable, Serializable {
             if (mParent != null)
                 json.put("parent", mParent.toJson());
             json.put("permissions", mPermissions);
+            if (mAccount != null)
+                json.put("account", mAccount);
         } catch (Exception ignored) {
         }
         return json;
@@ -247,6 +380,6 @@ public class PluginFile implements Parcelable, Serializable {
 
     @Override
     public String toString() {
-        return "[" + mPackage + "]: " + mPath;
+        return "[" + mPackage + "]: " + getPath();
     }
 }
\ No newline at end of file
@@ -10,27 +10,47 @@ import java.io.Serializable;
  *
  * @author Aidan Follestad (afollestad)
  */
-class PluginFileResult implements Parcelable, Serializable {
+public class PluginFileResult implements Parcelable, Serializable {
 
     private static final long serialVersionUID = 2568771528989642943L;
 
     private final String mError;
+    private final PluginError mErrorDetails;
     private final PluginFile mFile;
 
     public PluginFileResult(Parcel in) {
         mError = in.readString();
         mFile = in.readParcelable(PluginFile.class.getClassLoader());
+        mErrorDetails = PluginError.read(in, mError);
     }
 
     public PluginFileResult(String error, PluginFile file) {
         mError = error;
+        mErrorDetails = PluginError.of(error);
         mFile = file;
     }
 
+    private PluginFileResult(PluginError error) {
+        mError = error.getMessage();
+        mErrorDetails = error;
+        mFile = null;
+    }
+
+    public static PluginFileResult failed(PluginError error) {
+        return new PluginFileResult(error);
+    }
+
     public String getError() {
         return mError;
     }
 
+    /**
+     * Details of the error, null if the call succeeded.
+     */
+    public PluginError getErrorDetails() {
+        return mErrorDetails;
+    }
+
     public PluginFile getFile() {
         return mFile;
     }
@@ -44,6 +64,7 @@ class PluginFileResult implements Parcelable, Serializable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(mError);
         dest.writeParcelable(mFile, flags);
+        PluginError.write(dest, mErrorDetails);
     }
 
     public static final Creator<PluginFileResult> CREATOR = new Creator<PluginFileResult>() {
@@ -0,0 +1,18 @@
+package com.afollestad.cabinet.plugins;
+
+/**
+ * Receives the entries of a listing one at a time, as a plugin's backend produces them. See
+ * {@link PluginService#listFiles(PluginFile, PluginFileSink)}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface PluginFileSink {
+
+    /**
+     * Emits an entry. Blocks while the consumer is behind (backpressure), so a plugin should only
+     * fetch its next page of results once this returns.
+     *
+     * @return False if the consumer no longer wants entries; stop listing and return.
+     */
+    boolean onFile(PluginFile file) throws InterruptedException;
+}
@@ -9,6 +9,12 @@ import java.util.List;
 
 /**
  * Used to return results in the plugin service.
+ * <p/>
+ * The parcel starts with a {@link ParcelHeader}, since its layout differs from older versions of
+ * the library: entries are written with {@link PluginFile#writeList(Parcel, List, int)} and may
+ * be moved out of the Binder buffer (see {@link ParcelPayload}), and it carries a cursor and the
+ * entries' accounts. Listings from plugins built against older versions still read; apps built
+ * against older versions can't read listings from plugins built against this one.
  *
  * @author Aidan Follestad (afollestad)
  */
@@ -16,7 +22,11 @@ public class PluginLsResult implements Parcelable, Serializable {
 
     private static final long serialVersionUID = 2568771528989642943L;
 
+    private final static int FLAG_ACCOUNTS = 1;
+
     private String mError;
+    private PluginError mErrorDetails;
+    private String mCursor;
     private final List<PluginFile> mResults;
 
     public PluginLsResult() {
@@ -25,23 +35,77 @@ public class PluginLsResult implements Parcelable, Serializable {
 
     public PluginLsResult(Parcel in) {
         this();
+        final int flags = ParcelHeader.read(in);
         mError = in.readString();
-        in.readTypedList(mResults, PluginFile.CREATOR);
+        if (flags == ParcelHeader.NONE) {
+            // From a plugin built against an older version of the library
+            in.readTypedList(mResults, PluginFile.CREATOR);
+            mErrorDetails = PluginError.of(mError);
+            return;
+        }
+        mCursor = in.readString();
+        final Parcel payload = ParcelPayload.read(in);
+        try {
+            PluginFile.readList(payload, mResults);
+        } finally {
+            ParcelPayload.recycle(in, payload);
+        }
+        mErrorDetails = PluginError.read(in, mError);
+        if ((flags & FLAG_ACCOUNTS) != 0)
+            readAccounts(in, mResults);
     }
 
     public PluginLsResult(String error, List<PluginFile> results) {
+        this(error, results, null);
+    }
+
+    public PluginLsResult(String error, List<PluginFile> results, String cursor) {
         mError = error;
+        mErrorDetails = PluginError.of(error);
+        mResults = results;
+        mCursor = cursor;
+    }
+
+    private PluginLsResult(PluginError error, List<PluginFile> results) {
+        mError = error.getMessage();
+        mErrorDetails = error;
         mResults = results;
     }
 
+    public static PluginLsResult failed(PluginError error) {
+        return new PluginLsResult(error, null);
+    }
+
+    /**
+     * A listing that failed part way through; results are the entries listed before it failed.
+     */
+    public static PluginLsResult failed(PluginError error, List<PluginFile> results) {
+        return new PluginLsResult(error, results);
+    }
+
     public String getError() {
         return mError;
     }
 
+    /**
+     * Details of the error, null if the call succeeded.
+     */
+    public PluginError getErrorDetails() {
+        return mErrorDetails;
+    }
+
     public List<PluginFile> getResults() {
         return mResults;
     }
 
+    /**
+     * For paged listings, the cursor to pass to nextPage() for more results. Null once the listing
+     * is complete.
+     */
+    public String getCursor() {
+        return mCursor;
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -49,8 +113,59 @@ public class PluginLsResult implements Parcelable, Serializable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        final List<String> accounts = new ArrayList<>();
+        final int[] indexes = indexAccounts(mResults, accounts);
+        ParcelHeader.write(dest, indexes != null ? FLAG_ACCOUNTS : 0);
         dest.writeString(mError);
-        dest.writeTypedList(mResults);
+        dest.writeString(mCursor);
+        // Large listings are moved out of the Binder buffer, see ParcelPayload
+        final Parcel payload = Parcel.obtain();
+        try {
+            PluginFile.writeList(payload, mResults, flags);
+            ParcelPayload.write(dest, payload);
+        } finally {
+            payload.recycle();
+        }
+        PluginError.write(dest, mErrorDetails);
+        if (indexes != null) {
+            dest.writeStringArray(accounts.toArray(new String[accounts.size()]));
+            dest.writeIntArray(indexes);
+        }
+    }
+
+    /**
+     * Entries of listings that span accounts are tagged with their account, see
+     * {@link PluginFile#getAccount()}. The tags aren't part of PluginFile's own parcel, so they're
+     * written after everything else: the distinct accounts, then the index of each entry's account
+     * (-1 for none). Returns the indexes and fills accounts, or returns null if no entry has one.
+     */
+    private static int[] indexAccounts(List<PluginFile> files, List<String> accounts) {
+        final int[] indexes = new int[files != null ? files.size() : 0];
+        for (int i = 0; i < indexes.length; i++) {
+            final PluginFile file = files.get(i);
+            final String account = file != null ? file.getAccount() : null;
+            if (account == null) {
+                indexes[i] = -1;
+                continue;
+            }
+            int index = accounts.indexOf(account);
+            if (index == -1) {
+                index = accounts.size();
+                accounts.add(account);
+            }
+            indexes[i] = index;
+        }
+        return accounts.isEmpty() ? null : indexes;
+    }
+
+    private static void readAccounts(Parcel in, List<PluginFile> files) {
+        final String[] accounts = in.createStringArray();
+        final int[] indexes = in.createIntArray();
+        for (int i = 0; i < indexes.length && i < files.size(); i++) {
+            final PluginFile file = files.get(i);
+            if (file != null && indexes[i] >= 0)
+                file.setAccount(accounts[indexes[i]]);
+        }
     }
 
     public static final Creator<PluginLsResult> CREATOR = new Creator<PluginLsResult>() {
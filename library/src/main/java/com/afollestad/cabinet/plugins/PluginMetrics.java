@@ -0,0 +1,238 @@
+package com.afollestad.cabinet.plugins;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of the per-operation metrics recorded by a plugin service. Returned to the main app
+ * by getMetrics(); metrics are only recorded while the plugin has them enabled.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class PluginMetrics implements Parcelable, Serializable {
+
+    private static final long serialVersionUID = 2568771528989642945L;
+
+    public final static String OP_CONNECT = "connect";
+    public final static String OP_OPEN_FILE = "openFile";
+    public final static String OP_UPLOAD = "upload";
+    public final static String OP_DOWNLOAD = "download";
+    public final static String OP_LIST_FILES = "listFiles";
+    public final static String OP_LIST_FILES_PAGED = "listFilesPaged";
+    public final static String OP_MAKE_FILE = "makeFile";
+    public final static String OP_MAKE_FOLDER = "makeFolder";
+    public final static String OP_COPY = "copy";
+    public final static String OP_REMOVE = "remove";
+    public final static String OP_CHMOD = "chmod";
+    public final static String OP_CHOWN = "chown";
+    public final static String OP_EXISTS = "exists";
+    public final static String OP_EXISTS_ALL = "existsAll";
+    public final static String OP_DISCONNECT = "disconnect";
+    public final static String OP_SET_CURRENT_ACCOUNT = "setCurrentAccount";
+    public final static String OP_REMOVE_ACCOUNT = "removeAccount";
+    public final static String OP_MOVE = "move";
+    public final static String OP_OPEN_READ_STREAM = "openReadStream";
+    public final static String OP_UPLOAD_STREAM = "uploadStream";
+    /**
+     * The time from the main app first binding to the service to the first listing being served.
+     */
+    public final static String OP_COLD_START = "coldStart";
+    /**
+     * Refreshes of expired credentials, see PluginService#refreshCredentials(String).
+     */
+    public final static String OP_REFRESH_CREDENTIALS = "refreshCredentials";
+
+    /**
+     * Latencies are bucketed log-linearly: values below 8 microseconds get their own bucket, then
+     * every power of two is split into 8 sub-buckets (about 12% precision).
+     */
+    final static int SUB_BUCKETS = 8;
+    final static int MAX_MAGNITUDE = 40;
+    final static int BUCKET_COUNT = (MAX_MAGNITUDE - 1) * SUB_BUCKETS;
+
+    private final boolean mEnabled;
+    private final List<Operation> mOperations;
+
+    PluginMetrics(boolean enabled, List<Operation> operations) {
+        mEnabled = enabled;
+        mOperations = operations;
+    }
+
+    public PluginMetrics(Parcel in) {
+        mEnabled = in.readInt() == 1;
+        final int count = in.readInt();
+        mOperations = new ArrayList<>(Math.max(count, 0));
+        for (int i = 0; i < count; i++)
+            mOperations.add(new Operation(in));
+    }
+
+    /**
+     * Whether the plugin is currently recording metrics. If false, the snapshot may be empty or stale.
+     */
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(mOperations);
+    }
+
+    /**
+     * Returns the metrics for an operation, e.g. {@link #OP_LIST_FILES}, or null if it hasn't been called.
+     */
+    public Operation getOperation(String name) {
+        for (Operation op : mOperations) {
+            if (op.mName.equals(name))
+                return op;
+        }
+        return null;
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS)
+            return micros < 0 ? 0 : (int) micros;
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        if (magnitude > MAX_MAGNITUDE)
+            return BUCKET_COUNT - 1;
+        return (magnitude - 2) * SUB_BUCKETS + (int) ((micros >>> (magnitude - 3)) & (SUB_BUCKETS - 1));
+    }
+
+    static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        final int magnitude = index / SUB_BUCKETS + 2;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (magnitude - 3);
+    }
+
+    public static class Operation implements Serializable {
+
+        private static final long serialVersionUID = 2568771528989642946L;
+
+        private final String mName;
+        private final long mCount;
+        private final long mErrors;
+        private final long mInFlight;
+        private final long mBytes;
+        private final long mTotalMicros;
+        private final long[] mBuckets;
+
+        Operation(String name, long count, long errors, long inFlight, long bytes, long totalMicros, long[] buckets) {
+            mName = name;
+            mCount = count;
+            mErrors = errors;
+            mInFlight = inFlight;
+            mBytes = bytes;
+            mTotalMicros = totalMicros;
+            mBuckets = buckets;
+        }
+
+        Operation(Parcel in) {
+            mName = in.readString();
+            mCount = in.readLong();
+            mErrors = in.readLong();
+            mInFlight = in.readLong();
+            mBytes = in.readLong();
+            mTotalMicros = in.readLong();
+            mBuckets = in.createLongArray();
+        }
+
+        void writeToParcel(Parcel dest) {
+            dest.writeString(mName);
+            dest.writeLong(mCount);
+            dest.writeLong(mErrors);
+            dest.writeLong(mInFlight);
+            dest.writeLong(mBytes);
+            dest.writeLong(mTotalMicros);
+            dest.writeLongArray(mBuckets);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * The number of completed calls, including failed ones.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getErrors() {
+            return mErrors;
+        }
+
+        /**
+         * The number of calls that were still running when the snapshot was taken.
+         */
+        public long getInFlight() {
+            return mInFlight;
+        }
+
+        /**
+         * Bytes moved by upload/download style operations.
+         */
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public long getMeanMicros() {
+            return mCount > 0 ? mTotalMicros / mCount : 0;
+        }
+
+        /**
+         * Returns the latency at a percentile between 0 and 100, in microseconds. The value is the
+         * lower bound of the histogram bucket it falls in.
+         */
+        public long getPercentileMicros(double percentile) {
+            long total = 0;
+            for (long count : mBuckets)
+                total += count;
+            if (total == 0) return 0;
+            final long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100d) / 100d));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= target)
+                    return bucketLowerBound(i);
+            }
+            return bucketLowerBound(mBuckets.length - 1);
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": count=" + mCount + ", errors=" + mErrors + ", inFlight=" + mInFlight +
+                    ", bytes=" + mBytes + ", mean=" + getMeanMicros() + "us, p50=" + getPercentileMicros(50) +
+                    "us, p90=" + getPercentileMicros(90) + "us, p99=" + getPercentileMicros(99) + "us";
+        }
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(mEnabled ? 1 : 0);
+        dest.writeInt(mOperations.size());
+        for (Operation op : mOperations)
+            op.writeToParcel(dest);
+    }
+
+    public static final Creator<PluginMetrics> CREATOR = new Creator<PluginMetrics>() {
+        @Override
+        public PluginMetrics[] newArray(int size) {
+            return new PluginMetrics[size];
+        }
+
+        @Override
+        public PluginMetrics createFromParcel(Parcel source) {
+            return new PluginMetrics(source);
+        }
+    };
+}
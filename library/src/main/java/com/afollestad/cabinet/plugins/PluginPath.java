@@ -0,0 +1,230 @@
+package com.afollestad.cabinet.plugins;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A path, stored as a node in a trie of path segments. Each node only holds its own name and a
+ * pointer to its parent, so files in the same directory share every ancestor node, and memory
+ * grows with the number of unique segments rather than total path length. The full path string
+ * is only built when it's first requested, then kept; directories build theirs once and every file
+ * below them reuses it.
+ * <p/>
+ * Directories are interned: equal directory paths resolve to the same node, which the trie holds
+ * weakly so it disappears once no PluginFile references it. The last segment of a file's path is a
+ * plain node that isn't added to the trie, since nothing is ever resolved below a file.
+ * <p/>
+ * Segments are stored exactly as given, including empty ones, so every path string reads back
+ * unchanged: <code>/a/b/</code> ends with an empty segment and <code>smb://host</code> has one
+ * between its separators.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class PluginPath implements Serializable {
+
+    private static final long serialVersionUID = 3568771528989642943L;
+
+    private final static char SEPARATOR = File.separatorChar;
+    private final static ReferenceQueue<PluginPath> QUEUE = new ReferenceQueue<>();
+
+    /**
+     * The root of absolute paths, e.g. /sdcard/Download.
+     */
+    private final static PluginPath ROOT = new PluginPath(null, File.separator);
+    /**
+     * The root of relative paths, e.g. folder/file.txt. Its path is empty.
+     */
+    private final static PluginPath RELATIVE = new PluginPath(null, "");
+
+    private final PluginPath mParent;
+    private final String mName;
+    private Map<String, NodeRef> mChildren;
+    private volatile String mPath;
+
+    private PluginPath(PluginPath parent, String name) {
+        mParent = parent;
+        mName = name;
+    }
+
+    /**
+     * Returns the interned node for a directory path, or null if path is null. The empty path is
+     * the root of relative paths.
+     */
+    public static PluginPath of(String path) {
+        return of(path, true);
+    }
+
+    /**
+     * @param directory Whether path is a directory, whose node is interned.
+     */
+    public static PluginPath of(String path, boolean directory) {
+        if (path == null)
+            return null;
+        if (path.isEmpty())
+            return RELATIVE;
+        if (path.charAt(0) == SEPARATOR)
+            return ROOT.resolve(path, 1, directory);
+        return RELATIVE.resolve(path, 0, directory);
+    }
+
+    /**
+     * Same as {@link #of(String, boolean)}, but skips walking the trie from the root when path is
+     * below base, which is the common case when unparcelling the entries of a listing.
+     */
+    public static PluginPath of(PluginPath base, String path, boolean directory) {
+        // Relative paths don't share a prefix string with absolute ones, so they're resolved normally
+        if (base != null && base != RELATIVE && path != null) {
+            final String basePath = base.getPath();
+            final int baseLength = basePath.length();
+            if (path.startsWith(basePath)) {
+                if (base.isRoot())
+                    return base.resolve(path, baseLength, directory);
+                else if (path.length() > baseLength && path.charAt(baseLength) == SEPARATOR)
+                    return base.resolve(path, baseLength + 1, directory);
+            }
+        }
+        return of(path, directory);
+    }
+
+    /**
+     * Resolves the segments of path from start on, below this node. Empty segments are kept.
+     */
+    private PluginPath resolve(String path, int start, boolean directory) {
+        final int length = path.length();
+        if (start >= length)
+            return this;
+        PluginPath node = this;
+        while (true) {
+            int end = path.indexOf(SEPARATOR, start);
+            if (end == -1) end = length;
+            final String name = path.substring(start, end);
+            if (end == length)
+                return directory ? node.child(name) : new PluginPath(node, name);
+            node = node.child(name);
+            start = end + 1;
+        }
+    }
+
+    private PluginPath child(String name) {
+        expungeStaleNodes();
+        synchronized (this) {
+            if (mChildren == null) {
+                mChildren = new HashMap<>(4);
+            } else {
+                final NodeRef ref = mChildren.get(name);
+                final PluginPath existing = ref != null ? ref.get() : null;
+                if (existing != null)
+                    return existing;
+            }
+            final PluginPath node = new PluginPath(this, name);
+            mChildren.put(name, new NodeRef(node, QUEUE));
+            return node;
+        }
+    }
+
+    /**
+     * Drops trie entries whose nodes have been garbage collected.
+     */
+    private static void expungeStaleNodes() {
+        NodeRef ref;
+        while ((ref = (NodeRef) QUEUE.poll()) != null) {
+            final PluginPath parent = ref.mParent;
+            synchronized (parent) {
+                if (parent.mChildren != null && parent.mChildren.get(ref.mName) == ref)
+                    parent.mChildren.remove(ref.mName);
+            }
+        }
+    }
+
+    public boolean isRoot() {
+        return mParent == null;
+    }
+
+    /**
+     * Whether this is the empty segment after a trailing separator, e.g. of <code>/a/b/</code>.
+     */
+    private boolean isTrailing() {
+        return mName.isEmpty() && mParent != null && !mParent.isRoot();
+    }
+
+    /**
+     * Returns the parent node. A trailing separator isn't a level of its own, so the parent of
+     * <code>/a/b/</code> is <code>/a</code>. The parent of a top level relative path is the
+     * absolute root, and the roots have no parent.
+     */
+    public PluginPath getParent() {
+        final PluginPath parent = isTrailing() ? mParent.mParent : mParent;
+        if (parent == RELATIVE)
+            return ROOT;
+        return parent;
+    }
+
+    /**
+     * Returns the last segment, ignoring a trailing separator; empty for the roots.
+     */
+    public String getName() {
+        if (isRoot())
+            return "";
+        return isTrailing() ? mParent.mName : mName;
+    }
+
+    /**
+     * Children of the roots aren't preceded by a separator, the root's name already is one.
+     */
+    public String getPath() {
+        String path = mPath;
+        if (path == null) {
+            if (isRoot())
+                path = mName;
+            else if (mParent.isRoot())
+                path = mParent.mName + mName;
+            else
+                path = mParent.getPath() + SEPARATOR + mName;
+            mPath = path;
+        }
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return getPath();
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(getPath());
+    }
+
+    private static class NodeRef extends WeakReference<PluginPath> {
+
+        final PluginPath mParent;
+        final String mName;
+
+        NodeRef(PluginPath node, ReferenceQueue<PluginPath> queue) {
+            super(node, queue);
+            mParent = node.mParent;
+            mName = node.mName;
+        }
+    }
+
+    /**
+     * Nodes are serialized as their path string, and re-interned when they're read back.
+     */
+    private static class SerializedForm implements Serializable {
+
+        private static final long serialVersionUID = 3568771528989642944L;
+
+        private final String mPath;
+
+        SerializedForm(String path) {
+            mPath = path;
+        }
+
+        private Object readResolve() {
+            return PluginPath.of(mPath);
+        }
+    }
+}
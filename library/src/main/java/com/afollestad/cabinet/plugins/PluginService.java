@@ -1,27 +1,53 @@
 package com.afollestad.cabinet.plugins;
 
-import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
-import android.support.v4.app.NotificationCompat;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
+import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A PluginService is the heart of a plugin. It's started when a user of Cabinet taps on your plugin
@@ -36,8 +62,60 @@ import java.util.Map;
 public abstract class PluginService extends Service {
 
     private final static boolean DEBUG = true;
-    private Map<String, ChangeWatcher> mWatchers;
-    private final Object LOCK = new Object();
+
+    /**
+     * Automatic uploads replace the remote file even if it changed since it was opened.
+     */
+    public final static int CONFLICT_OVERWRITE = 0;
+    /**
+     * Automatic uploads of a file that changed remotely go to a copy next to it.
+     */
+    public final static int CONFLICT_KEEP_BOTH = 1;
+    /**
+     * Automatic uploads of a file that changed remotely are dropped, and the user is told.
+     */
+    public final static int CONFLICT_ABORT = 2;
+
+    /**
+     * Listings that span accounts are sorted by name, folders first.
+     */
+    public final static int SORT_NAME = 0;
+    /**
+     * Listings that span accounts are sorted by modified date, newest first.
+     */
+    public final static int SORT_MODIFIED = 1;
+    /**
+     * How many paths {@link #exists(String[])} checks at once when the plugin doesn't declare a
+     * maximum concurrency (see {@link PluginCapabilities#getMaxConcurrency()}).
+     */
+    private final static int DEFAULT_EXISTS_CONCURRENCY = 4;
+
+    private WatcherRegistry mWatchers;
+    private final MetricsRecorder mMetrics = new MetricsRecorder();
+    private final OperationTracer mTracer = new OperationTracer();
+    private final SingleFlight mSingleFlight = new SingleFlight();
+    private final CircuitBreaker mCircuits = new CircuitBreaker(5, TimeUnit.SECONDS.toMillis(5), TimeUnit.MINUTES.toMillis(2));
+    // Interactive reads only wait out short hiccups, the main app decides about anything longer
+    private final RetryPolicy mReadRetries = new RetryPolicy(3, 250, TimeUnit.SECONDS.toMillis(2), false);
+    // Bumped whenever credentials are refreshed, so calls can tell if they failed with stale ones
+    private final AtomicInteger mCredentialsGeneration = new AtomicInteger();
+    private TransferScheduler mScheduler;
+    private TransferQueue mTransfers;
+    private Prefetcher mPrefetcher;
+    private ExecutorService mExecutor;
+    /**
+     * Runs work that blocks until the main app reads from it (read stream pumps, paged listing
+     * producers and the merges behind them, and payloads piped by {@link ParcelPayload}), kept
+     * apart from the plugin's {@link #createExecutor()} so that a bounded pool there can't be
+     * filled up by readers that went away.
+     */
+    private ExecutorService mStreamExecutor;
+    private ListingPager mPager;
+    private volatile PluginCapabilities mCapabilities;
+    private volatile ServiceInfo mServiceInfo;
+    private final NotificationController mNotifications = new NotificationController(this);
+    private volatile long mBoundAt;
+    private final AtomicBoolean mColdStartRecorded = new AtomicBoolean();
 
     private void log(String message) {
         if (DEBUG)
@@ -47,8 +125,276 @@ public abstract class PluginService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        mWatchers = new HashMap<>();
         log("onCreate");
+
+        mExecutor = createExecutor();
+        mStreamExecutor = newDaemonPool("PluginStream");
+        ParcelPayload.setWriters(mStreamExecutor);
+        mPager = new ListingPager(mStreamExecutor);
+        mScheduler = new TransferScheduler(this);
+        mPrefetcher = new Prefetcher(this, new File(getCacheDir(), "prefetch"),
+                isCacheEncrypted() && EncryptedCache.isSupported() ? new EncryptedCache(this) : null);
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        mTransfers = new TransferQueue(this, new File(getFilesDir(), "transfers.json"));
+        mWatchers = new WatcherRegistry(this, new File(getFilesDir(), "watchers.json"), mExecutor);
+        // Pick up where the last process left off if it was killed. Not needed to serve the first
+        // call, so it's kept off the main thread; calls that need either first load them on demand.
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mTransfers.replay();
+                mWatchers.restore();
+            }
+        });
+    }
+
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mScheduler.refreshNetworkPolicy();
+        }
+    };
+
+    /**
+     * The rate that background transfers (queued and automatic uploads) are limited to, in bytes per
+     * second. Zero or less means unlimited. Calls made directly by the main app are never throttled.
+     * <p/>
+     * By default, background transfers are limited to 256KB/s on metered networks.
+     */
+    protected long getBackgroundBytesPerSecond(boolean metered) {
+        return metered ? 256 * 1024 : 0;
+    }
+
+    /**
+     * The number of subfolders to list in the background after the user opens a folder, so that
+     * opening one of them is instant. Folders the user opens often are prefetched first. Zero
+     * (the default) disables prefetching of listings.
+     */
+    protected int getPrefetchCount() {
+        return 0;
+    }
+
+    /**
+     * Files in an opened folder up to this size are downloaded to the cache in the background, and
+     * later downloads of them are served from the cache if the file hasn't changed. Zero (the
+     * default) disables prefetching of files.
+     */
+    protected long getPrefetchFileSizeLimit() {
+        return 0;
+    }
+
+    /**
+     * The total size of the files prefetched for a single folder.
+     */
+    protected long getPrefetchBudget() {
+        return 4 * 1024 * 1024;
+    }
+
+    /**
+     * What to do when a watched file is saved, but the remote file changed since it was opened:
+     * {@link #CONFLICT_KEEP_BOTH} (the default), {@link #CONFLICT_OVERWRITE} or
+     * {@link #CONFLICT_ABORT}. Remote changes are only detected if you implement
+     * {@link #stat(PluginFile)}.
+     */
+    protected int getConflictPolicy() {
+        return CONFLICT_KEEP_BOTH;
+    }
+
+    /**
+     * Returns the current details of a remote file, or null if it doesn't exist. Used before
+     * automatic uploads to check whether the remote file changed since it was opened (compared by
+     * modified date and length), and after them to record what the next check compares against.
+     * The default implementation returns null, which skips the check.
+     * <p/>
+     * The check and the upload aren't atomic; if your backend supports conditional writes (e.g.
+     * an If-Match header), use them in upload() as well.
+     */
+    protected PluginFile stat(PluginFile file) throws Exception {
+        return null;
+    }
+
+    /**
+     * Refreshes the credentials of an account in place, e.g. by trading a refresh token for a new
+     * access token, without disconnecting. Called when a call fails with a {@link PluginException}
+     * with {@link PluginError#ERROR_AUTH_EXPIRED}. Meanwhile, other calls that fail the same way
+     * wait for this refresh rather than starting their own; once it succeeds, they're all made
+     * again.
+     * <p/>
+     * Return false (the default) if the credentials can't be refreshed; the error is then passed
+     * on to the main app, which sends the user through the authenticator again.
+     */
+    protected boolean refreshCredentials(String accountId) throws Exception {
+        return false;
+    }
+
+    /**
+     * Whether prefetched files (see {@link #getPrefetchFileSizeLimit()}) are encrypted at rest, with
+     * a key per account. Encrypted copies are kept when the service is destroyed rather than wiped
+     * with the rest of the cache, so later sessions reuse them while the remote file is unchanged.
+     * Removing an account drops its key. Off by default, and ignored below API 19.
+     * <p/>
+     * Files your plugin writes itself aren't encrypted: what {@link #openFile(PluginFile)} returns
+     * is read by the main app, and {@link #download(PluginFile, Uri)} writes where the main app
+     * asked. Keys are only protected by the AndroidKeyStore from API 23; see {@link EncryptedCache}.
+     */
+    protected boolean isCacheEncrypted() {
+        return false;
+    }
+
+    /**
+     * Creates the executor that {@link TaskScope}s run subtasks on. It's also used for checking
+     * many paths at once, replaying the transfer journal and hashing watched files. By default, this
+     * uses virtual threads when the runtime has them (e.g. JVM-side tests on Java 21+), and
+     * otherwise a cached pool of daemon threads, which suits blocking backend calls.
+     * <p/>
+     * A bounded pool works, but tasks queue behind each other once it's full; streams and paged
+     * listings that wait on the main app run on a separate pool, so they can't fill it up.
+     */
+    protected ExecutorService createExecutor() {
+        try {
+            // Looked up reflectively, Android doesn't have virtual threads
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception ignored) {
+        }
+        return newDaemonPool("PluginWorker");
+    }
+
+    private static ExecutorService newDaemonPool(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                final Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens a scope for fanning an operation out into parallel subtasks (e.g. a recursive copy,
+     * or checking many paths at once). See {@link TaskScope}.
+     */
+    protected final TaskScope openTaskScope() {
+        return new TaskScope(mExecutor);
+    }
+
+    /**
+     * Checks whether each of the given paths exists. The default implementation calls
+     * {@link #exists(String)} for the paths in parallel, at most
+     * {@link PluginCapabilities#getMaxConcurrency()} at a time; override it if your backend can
+     * check many paths in one request. Batches are never larger than
+     * {@link PluginCapabilities#getMaxBatchSize()}.
+     */
+    protected boolean[] exists(final String[] paths) throws Exception {
+        final boolean[] results = new boolean[paths.length];
+        final int maxConcurrency = capabilities().getMaxConcurrency();
+        final int workers = Math.min(paths.length,
+                maxConcurrency > 0 ? maxConcurrency : DEFAULT_EXISTS_CONCURRENCY);
+        // A fixed number of subtasks take the next path in turn, rather than one subtask per path
+        final AtomicInteger next = new AtomicInteger();
+        final TaskScope scope = openTaskScope();
+        try {
+            for (int i = 0; i < workers; i++) {
+                scope.fork(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        int index;
+                        while ((index = next.getAndIncrement()) < paths.length) {
+                            if (Thread.interrupted())
+                                throw new InterruptedException();
+                            results[index] = exists(paths[index]);
+                        }
+                        return null;
+                    }
+                });
+            }
+            scope.join();
+        } finally {
+            scope.close();
+        }
+        return results;
+    }
+
+    /**
+     * Calls {@link #exists(String[])} with batches of at most
+     * {@link PluginCapabilities#getMaxBatchSize()} paths, one after another.
+     */
+    private boolean[] existsInBatches(String[] paths) throws Exception {
+        final int batchSize = capabilities().getMaxBatchSize();
+        if (batchSize <= 0 || paths.length <= batchSize)
+            return exists(paths);
+        final boolean[] results = new boolean[paths.length];
+        for (int from = 0; from < paths.length; from += batchSize) {
+            final int to = Math.min(paths.length, from + batchSize);
+            final boolean[] batch = exists(Arrays.copyOfRange(paths, from, to));
+            System.arraycopy(batch, 0, results, from, to - from);
+        }
+        return results;
+    }
+
+    PluginCapabilities capabilities() {
+        if (mCapabilities == null)
+            mCapabilities = getCapabilities();
+        return mCapabilities;
+    }
+
+    /**
+     * Describes what your plugin supports, so the main app can skip paths it doesn't. The default
+     * implementation combines the meta-data on your service tag (see {@link PluginCapabilities})
+     * with the optional methods your service overrides, e.g. overriding
+     * {@link #move(PluginFile, PluginFile)} advertises a server-side move.
+     * <p/>
+     * Called once, the result is cached for the life of the service.
+     */
+    protected PluginCapabilities getCapabilities() {
+        Bundle metaData = null;
+        try {
+            metaData = getServiceInfo().metaData;
+        } catch (PackageManager.NameNotFoundException e) {
+            log("Unable to read capability meta-data: " + e.getLocalizedMessage());
+        }
+        int flags = 0;
+        if (overrides("move", PluginFile.class, PluginFile.class))
+            flags |= PluginCapabilities.SERVER_SIDE_MOVE;
+        if (overrides("openRemoteStream", PluginFile.class))
+            flags |= PluginCapabilities.STREAMED_READ;
+        if (overrides("upload", InputStream.class, long.class, PluginFile.class))
+            flags |= PluginCapabilities.STREAMED_UPLOAD;
+        if (overrides("listFiles", PluginFile.class, PluginFileSink.class))
+            flags |= PluginCapabilities.STREAMED_LISTING;
+        if (overrides("exists", String[].class))
+            flags |= PluginCapabilities.BATCH_EXISTS;
+        if (overrides("listFiles", String.class, PluginFile.class, PluginFileSink.class))
+            flags |= PluginCapabilities.MULTI_ACCOUNT_LISTING;
+        return new PluginCapabilities.Builder(metaData)
+                .flags(flags)
+                .build();
+    }
+
+    private boolean overrides(String name, Class<?>... parameterTypes) {
+        for (Class<?> cls = getClass(); cls != PluginService.class; cls = cls.getSuperclass()) {
+            try {
+                cls.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return false;
+    }
+
+    TransferScheduler getTransferScheduler() {
+        return mScheduler;
+    }
+
+    NotificationController getNotifications() {
+        return mNotifications;
+    }
+
+    Prefetcher getPrefetcher() {
+        return mPrefetcher;
     }
 
     public void showError(String error) {
@@ -62,25 +408,34 @@ public abstract class PluginService extends Service {
         super.onDestroy();
         log("onDestroy");
 
-        synchronized (LOCK) {
-            for (ChangeWatcher w : mWatchers.values())
-                w.stopWatching();
-            mWatchers.clear();
-            mWatchers = null;
-        }
-
-        wipeDirectory(getCacheDir());
-        wipeDirectory(getExternalCacheDir());
+        mWatchers.shutdown();
+        mTransfers.shutdown();
+        mPrefetcher.shutdown();
+        mPager.shutdown();
+        mExecutor.shutdownNow();
+        ParcelPayload.setWriters(null);
+        mStreamExecutor.shutdownNow();
+        unregisterReceiver(mConnectivityReceiver);
+
+        // Files with uploads still queued are kept, they're uploaded on the next start
+        final Set<String> pending = mTransfers.getPendingPaths();
+        if (mPrefetcher.isPersistent())
+            pending.add(mPrefetcher.getCacheDir().getAbsolutePath());
+        wipeDirectory(getCacheDir(), pending);
+        wipeDirectory(getExternalCacheDir(), pending);
         sendBroadcast(new Intent(PluginConstants.EXIT_ACTION)
                 .putExtra(PluginConstants.EXTRA_PACKAGE, getPackageName()));
     }
 
-    private void wipeDirectory(File dir) {
+    private void wipeDirectory(File dir, Set<String> keep) {
+        if (dir == null) return;
         File[] cache = dir.listFiles();
         if (cache != null) {
             for (File fi : cache) {
-                if (fi.isDirectory()) {
-                    wipeDirectory(fi);
+                if (keep.contains(fi.getAbsolutePath())) {
+                    continue;
+                } else if (fi.isDirectory()) {
+                    wipeDirectory(fi, keep);
                 } else {
                     //noinspection ResultOfMethodCallIgnored
                     fi.delete();
@@ -89,59 +444,307 @@ public abstract class PluginService extends Service {
         }
     }
 
-    private void watch(File local, PluginFile remote) {
-        if (mWatchers == null) return;
-        synchronized (LOCK) {
-            removeExpiredWatchers();
-            final String path = local.getAbsolutePath();
-            if (mWatchers.containsKey(path)) return;
-            ChangeWatcher watcher = new ChangeWatcher(path, remote, this);
-            mWatchers.put(path, watcher);
+    protected void removeExpiredWatchers() {
+        mWatchers.removeExpired();
+    }
+
+    /**
+     * Queues an upload in the persistent transfer queue. The upload is retried if it fails, and
+     * is resumed if the service is killed before it finishes. The local file must stay readable
+     * until then.
+     */
+    protected final void enqueueUpload(@NonNull Uri local, @NonNull PluginFile remote) {
+        mTransfers.enqueue(local, remote, false);
+    }
+
+    /**
+     * Queues an upload of a watched file, which is checked against the remote file before it runs.
+     */
+    void enqueueWatchedUpload(Uri local, PluginFile remote) {
+        mTransfers.enqueue(local, remote, true);
+    }
+
+    PluginFile performGuardedUpload(String local, PluginFile snapshot) throws Exception {
+        final Uri uri = Uri.parse(local);
+        // The watcher's remote file is newer than the snapshot if an earlier upload finished since
+        final PluginFile base = mWatchers.getRemote(new File(uri.getPath()).getAbsolutePath(), snapshot);
+        PluginFile target = base;
+        final PluginFile current = stat(base);
+        if (current != null && UploadGuard.changedSince(base, current)) {
+            switch (getConflictPolicy()) {
+                case CONFLICT_ABORT:
+                    throw new UploadGuard.ConflictException(getString(R.string.upload_conflict_error, base.getName()));
+                case CONFLICT_KEEP_BOTH:
+                    target = UploadGuard.conflictCopy(this, base);
+                    log(base + " changed remotely, uploading to " + target);
+                    break;
+                default:
+                    log(base + " changed remotely, overwriting it");
+                    break;
+            }
         }
+        return upload(uri, target);
     }
 
-    protected void removeExpiredWatchers() {
-        synchronized (LOCK) {
-            for (ChangeWatcher w : mWatchers.values()) {
-                if (w.isExpired()) {
-                    w.stopWatching();
-                    mWatchers.remove(w.getPath());
-                }
+    /**
+     * Later uploads of the file are checked against a stat() taken now, rather than the file
+     * upload() returned. Backends often set the modified date on their side, which needn't match
+     * what upload() reports, and would make every later upload look like a conflict.
+     */
+    void onGuardedUploadFinished(String local, PluginFile result) {
+        PluginFile current = null;
+        if (result != null) {
+            try {
+                current = stat(result);
+            } catch (Exception e) {
+                log("Unable to stat " + result + " after uploading it: " + e.getMessage());
             }
         }
+        mWatchers.onUploaded(new File(Uri.parse(local).getPath()).getAbsolutePath(),
+                current != null ? current : result);
     }
 
+    private final static int STREAM_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Opens a buffered stream to read a local file or content URI.
+     */
     protected InputStream openInputStream(@NonNull Uri uri) throws Exception {
-        if (uri.getScheme() == null || uri.getScheme().equalsIgnoreCase("file")) {
-            return new FileInputStream(uri.getPath());
+        return mScheduler.wrap(openLocalInputStream(uri));
+    }
+
+    private InputStream openLocalInputStream(Uri uri) throws Exception {
+        final InputStream is;
+        if (isFileUri(uri)) {
+            is = new FileInputStream(uri.getPath());
         } else if (uri.getScheme().equalsIgnoreCase("content")) {
-            return getContentResolver().openInputStream(uri);
+            is = getContentResolver().openInputStream(uri);
         } else {
             throw new IllegalArgumentException("Unsupported URI scheme: " + uri);
         }
+        return new BufferedInputStream(is, STREAM_BUFFER_SIZE);
     }
 
+    /**
+     * Opens a buffered stream to write a local file or content URI.
+     */
     protected OutputStream openOutputStream(@NonNull Uri uri) throws Exception {
-        if (uri.getScheme() == null || uri.getScheme().equalsIgnoreCase("file")) {
-            return new FileOutputStream(uri.getPath());
+        return mScheduler.wrap(openLocalOutputStream(uri));
+    }
+
+    private OutputStream openLocalOutputStream(Uri uri) throws Exception {
+        final OutputStream os;
+        if (isFileUri(uri)) {
+            os = new FileOutputStream(uri.getPath());
         } else if (uri.getScheme().equalsIgnoreCase("content")) {
-            return getContentResolver().openOutputStream(uri);
+            os = getContentResolver().openOutputStream(uri);
         } else {
             throw new IllegalArgumentException("Unsupported URI scheme: " + uri);
         }
+        if (os instanceof FileOutputStream)
+            return new FileBufferedOutputStream((FileOutputStream) os);
+        return new BufferedOutputStream(os, STREAM_BUFFER_SIZE);
     }
 
-    protected String getFileName(String path) {
-        if (path != null) {
-            if (path.endsWith(File.separator))
-                path = path.substring(0, path.length() - 1);
-            if (path.contains(File.separator)) {
-                path = path.substring(path.lastIndexOf(File.separatorChar) + 1);
-                if (path.trim().isEmpty())
-                    path = File.separator;
+    /**
+     * A buffered stream to a local file, which keeps hold of the file so that
+     * {@link #copy(Uri, OutputStream, ProgressListener)} can write to its channel directly.
+     */
+    private static class FileBufferedOutputStream extends BufferedOutputStream {
+
+        final FileOutputStream mFile;
+
+        FileBufferedOutputStream(FileOutputStream file) {
+            super(file, STREAM_BUFFER_SIZE);
+            mFile = file;
+        }
+    }
+
+    /**
+     * Returns the channel of the file that out writes to without any processing in between, or
+     * null if there isn't one.
+     */
+    private static FileChannel getFileChannel(OutputStream out) {
+        if (out instanceof FileOutputStream)
+            return ((FileOutputStream) out).getChannel();
+        if (out instanceof FileBufferedOutputStream)
+            return ((FileBufferedOutputStream) out).mFile.getChannel();
+        return null;
+    }
+
+    private static boolean isFileUri(Uri uri) {
+        return uri.getScheme() == null || uri.getScheme().equalsIgnoreCase("file");
+    }
+
+    /**
+     * Copies a local file or content URI to a stream, e.g. the request body of an upload. Files are
+     * copied with FileChannel#transferTo() if out is a file, including one opened with
+     * {@link #openOutputStream(Uri)}, and otherwise read through a channel with a pooled buffer.
+     * Background transfers are always copied through the buffer, so they can be throttled. The
+     * stream is flushed, but not closed.
+     *
+     * @return The number of bytes copied.
+     */
+    protected long copy(@NonNull Uri source, @NonNull OutputStream out, @Nullable ProgressListener listener) throws Exception {
+        if (isFileUri(source)) {
+            final FileInputStream fis = new FileInputStream(source.getPath());
+            try {
+                final FileChannel in = fis.getChannel();
+                final long total = in.size();
+                final FileChannel file = mScheduler.isBackgroundThread() ? null : getFileChannel(out);
+                if (file != null) {
+                    // Anything already buffered comes first
+                    out.flush();
+                    return transfer(in, file, total, listener);
+                }
+                final long copied = copy(in, Channels.newChannel(out), total, listener);
+                out.flush();
+                return copied;
+            } finally {
+                fis.close();
+            }
+        }
+        final InputStream is = getContentResolver().openInputStream(source);
+        try {
+            final long copied = copy(Channels.newChannel(is), Channels.newChannel(out), -1, listener);
+            out.flush();
+            return copied;
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Copies a stream, e.g. the response body of a download, to a local file or content URI.
+     * Files are written with FileChannel#transferFrom(). The input stream is not closed.
+     *
+     * @return The number of bytes copied.
+     */
+    protected long copy(@NonNull InputStream in, long length, @NonNull Uri dest, @Nullable ProgressListener listener) throws Exception {
+        final ReadableByteChannel source = Channels.newChannel(in);
+        if (isFileUri(dest)) {
+            final FileOutputStream fos = new FileOutputStream(dest.getPath());
+            try {
+                final FileChannel out = fos.getChannel();
+                if (mScheduler.isBackgroundThread())
+                    return copy(source, out, length, listener);
+                long position = 0;
+                long read;
+                while ((read = out.transferFrom(source, position, BufferPool.BUFFER_SIZE)) > 0) {
+                    position += read;
+                    if (listener != null)
+                        listener.onProgress(position, length);
+                }
+                return position;
+            } finally {
+                fos.close();
             }
         }
-        return path;
+        final OutputStream os = getContentResolver().openOutputStream(dest);
+        try {
+            return copy(source, Channels.newChannel(os), length, listener);
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Copies one local file to another with FileChannel#transferTo(), which lets the kernel move
+     * the data without it passing through the process.
+     *
+     * @return The number of bytes copied.
+     */
+    protected long copy(@NonNull File source, @NonNull File dest, @Nullable ProgressListener listener) throws Exception {
+        final FileInputStream fis = new FileInputStream(source);
+        try {
+            final FileOutputStream fos = new FileOutputStream(dest);
+            try {
+                final FileChannel in = fis.getChannel();
+                if (mScheduler.isBackgroundThread())
+                    return copy(in, fos.getChannel(), in.size(), listener);
+                return transfer(in, fos.getChannel(), in.size(), listener);
+            } finally {
+                fos.close();
+            }
+        } finally {
+            fis.close();
+        }
+    }
+
+    private long transfer(FileChannel in, WritableByteChannel out, long total, ProgressListener listener) throws Exception {
+        long position = 0;
+        while (position < total) {
+            final long sent = in.transferTo(position, Math.min(BufferPool.BUFFER_SIZE, total - position), out);
+            if (sent <= 0) break;
+            position += sent;
+            if (listener != null)
+                listener.onProgress(position, total);
+        }
+        return position;
+    }
+
+    private long copy(ReadableByteChannel in, WritableByteChannel out, long total, ProgressListener listener) throws Exception {
+        final ByteBuffer buffer = BufferPool.acquire();
+        final boolean throttled = mScheduler.isBackgroundThread();
+        try {
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (read == 0) continue;
+                if (throttled)
+                    mScheduler.throttle(read);
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    out.write(buffer);
+                buffer.clear();
+                copied += read;
+                if (listener != null)
+                    listener.onProgress(copied, total);
+            }
+            return copied;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Opens a local file for an upload with transfer compression. The stream returns the file's
+     * contents compressed with a codec chosen for the file type and content (already compressed
+     * formats like JPEG or ZIP are sent as-is), preceded by a short header naming the codec.
+     * <p/>
+     * Only use this if your backend decodes it, e.g. a server your plugin controls that uses the
+     * same framing. See {@link #openOutputStream(Uri, boolean)} for the receiving side. Background
+     * transfers are throttled by the compressed bytes, which is what goes over the network.
+     */
+    protected InputStream openInputStream(@NonNull Uri uri, boolean compress) throws Exception {
+        if (!compress)
+            return openInputStream(uri);
+        return mScheduler.wrap(TransferCompression.compress(openLocalInputStream(uri), uri.getLastPathSegment()));
+    }
+
+    /**
+     * Opens a local file for a download with transfer compression. Everything written to the stream
+     * must be framed by {@link #openInputStream(Uri, boolean)}'s header, even files the sender
+     * didn't compress; anything else fails the download rather than being written as-is. Background
+     * transfers are throttled by the compressed bytes.
+     */
+    protected OutputStream openOutputStream(@NonNull Uri uri, boolean compressed) throws Exception {
+        if (!compressed)
+            return openOutputStream(uri);
+        return mScheduler.wrap(TransferCompression.decompress(openLocalOutputStream(uri)));
+    }
+
+    /**
+     * Returns the last segment of a path, ignoring a trailing separator; empty for the root. Same
+     * as {@link PluginFile#getName()}, without looking the path up.
+     */
+    protected String getFileName(String path) {
+        if (path == null || path.trim().isEmpty())
+            return path;
+        int end = path.length();
+        if (end > 1 && path.charAt(end - 1) == File.separatorChar)
+            end--;
+        return path.substring(path.lastIndexOf(File.separatorChar, end - 1) + 1, end);
     }
 
     @Override
@@ -155,6 +758,7 @@ public abstract class PluginService extends Service {
                     // Update the current account to the newly added one
                     try {
                         setCurrentAccount(intent.getStringExtra(PluginAuthenticator.ACCOUNT_ID_EXTRA));
+                        mTransfers.resume();
                     } catch (Exception e) {
                         e.printStackTrace();
                         Toast.makeText(this, e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
@@ -193,6 +797,8 @@ public abstract class PluginService extends Service {
             refreshNotification(getString(R.string.connecting));
             connect();
             refreshNotification(getString(R.string.connected));
+            // Uploads that were waiting for a connection
+            mTransfers.resume();
         }
     }
 
@@ -203,6 +809,7 @@ public abstract class PluginService extends Service {
     }
 
     private void exit() {
+        mNotifications.cancel();
         stopForeground(true);
         stopSelf();
     }
@@ -212,33 +819,16 @@ public abstract class PluginService extends Service {
     }
 
     private void refreshNotification(String status, boolean allowExit) {
-        if (status == null)
-            status = getString(R.string.disconnected);
-        if (getForegroundId() > 0) {
-            try {
-                PackageManager pm = getPackageManager();
-                ServiceInfo info = pm.getServiceInfo(getComponentName(), PackageManager.GET_SERVICES);
-                PendingIntent mainIntent = PendingIntent.getActivity(this, 1001,
-                        new Intent(PluginConstants.VIEW_PLUGIN_ACTION)
-                                .setComponent(getMainAppComponent())
-                                .putExtra(PluginConstants.EXTRA_PACKAGE, getPackageName())
-                                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK),
-                        PendingIntent.FLAG_CANCEL_CURRENT);
-                PendingIntent exitIntent = PendingIntent.getService(this, 1002,
-                        new Intent(PluginConstants.EXIT_ACTION).setComponent(getComponentName()),
-                        PendingIntent.FLAG_CANCEL_CURRENT);
-                NotificationCompat.Builder builder = new NotificationCompat.Builder(this)
-                        .setContentTitle(info.loadLabel(pm))
-                        .setContentText(status)
-                        .setSmallIcon(info.getIconResource())
-                        .setContentIntent(mainIntent);
-                if (allowExit)
-                    builder.addAction(R.drawable.ic_stat_navigation_close, getString(R.string.exit), exitIntent);
-                startForeground(getForegroundId(), builder.build());
-            } catch (Exception e) {
-                Toast.makeText(this, e.getLocalizedMessage(), Toast.LENGTH_SHORT).show();
-            }
-        }
+        mNotifications.setStatus(status, allowExit);
+    }
+
+    /**
+     * Looked up once, PackageManager calls are IPCs to the system.
+     */
+    ServiceInfo getServiceInfo() throws PackageManager.NameNotFoundException {
+        if (mServiceInfo == null)
+            mServiceInfo = getPackageManager().getServiceInfo(getComponentName(), PackageManager.GET_META_DATA);
+        return mServiceInfo;
     }
 
     /**
@@ -272,13 +862,13 @@ public abstract class PluginService extends Service {
      */
     protected abstract int getForegroundId();
 
-    private ComponentName getComponentName() {
+    ComponentName getComponentName() {
         String pkg = getPackageName();
         Class cls = getClass();
         return new ComponentName(pkg, cls.getName());
     }
 
-    private ComponentName getMainAppComponent() {
+    ComponentName getMainAppComponent() {
         return new ComponentName("com.afollestad.cabinet", "com.afollestad.cabinet.ui.MainActivity");
     }
 
@@ -313,7 +903,7 @@ public abstract class PluginService extends Service {
         if (watch && (uri.getScheme() == null || uri.getScheme().equals("file"))) {
             // Begins watching this local file for changes.
             // When changes are detected, upload() is called.
-            watch(new File(uri.getPath()), file);
+            mWatchers.watch(new File(uri.getPath()), file);
         }
         return uri;
     }
@@ -324,6 +914,99 @@ public abstract class PluginService extends Service {
 
     protected abstract List<PluginFile> listFiles(PluginFile parent) throws Exception;
 
+    /**
+     * Streams the contents of a folder into sink as your backend produces them, instead of
+     * returning them all at once. Used for paged listings (listFilesPaged()), which lets the main
+     * app show the first entries of a huge folder without the whole listing being held in memory.
+     * <p/>
+     * The sink blocks when the main app is behind, so fetch each page from your backend only after
+     * the previous one has been emitted, and stop if the sink returns false.
+     * <p/>
+     * The default implementation emits the results of {@link #listFiles(PluginFile)}. If you
+     * override this, you can implement listFiles(PluginFile) with {@link #collectFiles(PluginFile)}.
+     */
+    protected void listFiles(PluginFile parent, PluginFileSink sink) throws Exception {
+        final List<PluginFile> results = listFiles(parent);
+        if (results == null) return;
+        for (PluginFile file : results) {
+            if (!sink.onFile(file))
+                break;
+        }
+    }
+
+    /**
+     * Streams a folder of any of your accounts, not just the current one, into sink, for listings
+     * that span accounts. Works like {@link #listFiles(PluginFile, PluginFileSink)}, but is called
+     * for several accounts at once, from different threads, so it must not change the current
+     * account; use a client per account instead.
+     * <p/>
+     * The default implementation only lists the current account, and fails for the others with
+     * {@link PluginError#ERROR_UNSUPPORTED}.
+     */
+    protected void listFiles(String accountId, PluginFile parent, PluginFileSink sink) throws Exception {
+        if (accountId == null || accountId.equals(getCurrentAccount())) {
+            listFiles(parent, sink);
+            return;
+        }
+        throw new PluginException(PluginError.ERROR_UNSUPPORTED,
+                "Listing an account other than the current one isn't supported.");
+    }
+
+    /**
+     * Lists one account's part of a listing that spans accounts, counting the outcome against
+     * that account's circuit rather than the current one's.
+     */
+    private void listAccount(final String accountId, final PluginFile parent, final PluginFileSink sink) throws Exception {
+        final PluginError unavailable = mCircuits.check(accountId);
+        if (unavailable != null)
+            throw new PluginException(unavailable.getCode(), unavailable.getMessage(),
+                    unavailable.isRetryable(), unavailable.getRetryAfter(), null);
+        try {
+            mReadRetries.execute(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final AtomicBoolean emitted = new AtomicBoolean();
+                    try {
+                        listFiles(accountId, parent, new PluginFileSink() {
+                            @Override
+                            public boolean onFile(PluginFile file) throws InterruptedException {
+                                emitted.set(true);
+                                return sink.onFile(file);
+                            }
+                        });
+                    } catch (Exception e) {
+                        // Emitted entries can't be taken back, so only a listing that failed before its first is retried
+                        final PluginError error = PluginError.from(e);
+                        if (emitted.get() && error.isRetryable())
+                            throw new PluginException(error.getCode(), error.getMessage(), false, 0, e);
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+            mCircuits.onSuccess(accountId);
+        } catch (Exception e) {
+            mCircuits.onFailure(accountId, PluginError.from(e));
+            throw e;
+        }
+    }
+
+    /**
+     * Collects the output of {@link #listFiles(PluginFile, PluginFileSink)} into a list. Only use
+     * this if you override the streaming listFiles(), otherwise the two call each other forever.
+     */
+    protected final List<PluginFile> collectFiles(PluginFile parent) throws Exception {
+        final List<PluginFile> results = new ArrayList<>();
+        listFiles(parent, new PluginFileSink() {
+            @Override
+            public boolean onFile(PluginFile file) {
+                results.add(file);
+                return true;
+            }
+        });
+        return results;
+    }
+
     protected abstract PluginFile makeFile(String displayName, PluginFile parent) throws Exception;
 
     protected abstract PluginFile makeFolder(String displayName, PluginFile parent) throws Exception;
@@ -332,6 +1015,98 @@ public abstract class PluginService extends Service {
 
     protected abstract boolean remove(PluginFile file) throws Exception;
 
+    /**
+     * Moves or renames a file within your backend. The default implementation copies the file and
+     * removes the source; override it if your backend can move server-side (e.g. a rename call or
+     * SFTP rename), which avoids transferring the file at all.
+     */
+    protected PluginFile move(PluginFile source, PluginFile dest) throws Exception {
+        final PluginFile result = copy(source, dest);
+        if (!remove(source))
+            throw new Exception("Copied " + source + " but was unable to remove it.");
+        return result;
+    }
+
+    /**
+     * Opens a stream which reads the contents of a remote file. Used when the main app moves files
+     * between plugins: the stream is piped straight into the other plugin's upload.
+     * <p/>
+     * The default implementation downloads the file to the cache first and streams that; override it
+     * to stream directly from your backend.
+     */
+    protected InputStream openRemoteStream(PluginFile file) throws Exception {
+        final File temp = File.createTempFile("transfer", null, getCacheDir());
+        try {
+            download(file, Uri.fromFile(temp));
+        } catch (Exception e) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+        return new FileInputStream(temp) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        };
+    }
+
+    /**
+     * Uploads the contents of a stream, e.g. a file piped from another plugin. length is -1 if it's
+     * unknown.
+     * <p/>
+     * The default implementation writes the stream to the cache and passes it to
+     * {@link #upload(Uri, PluginFile)}; override it if your backend accepts streamed uploads.
+     */
+    protected PluginFile upload(InputStream in, long length, PluginFile remote) throws Exception {
+        final File temp = File.createTempFile("transfer", null, getCacheDir());
+        try {
+            copy(in, length, Uri.fromFile(temp), null);
+            return upload(Uri.fromFile(temp), remote);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private ParcelFileDescriptor performOpenReadStream(final PluginFile file) throws Exception {
+        // Opened here so that failures are reported to the caller rather than the pipe
+        final InputStream is = openRemoteStream(file);
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final Runnable pump = new Runnable() {
+            @Override
+            public void run() {
+                OutputStream os = null;
+                try {
+                    os = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                    copy(Channels.newChannel(is), Channels.newChannel(os), -1, null);
+                } catch (Exception e) {
+                    // Usually the reading side went away
+                    log("Read stream of " + file + " ended: " + e.getLocalizedMessage());
+                } finally {
+                    try {
+                        is.close();
+                        if (os != null) os.close();
+                        else pipe[1].close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        };
+        try {
+            // Interrupted when the service is destroyed
+            mStreamExecutor.execute(pump);
+        } catch (RejectedExecutionException e) {
+            is.close();
+            pipe[0].close();
+            pipe[1].close();
+            throw e;
+        }
+        return pipe[0];
+    }
+
     protected abstract boolean exists(String path) throws Exception;
 
     protected abstract void chmod(int permissions, PluginFile target) throws Exception;
@@ -356,12 +1131,241 @@ public abstract class PluginService extends Service {
             }
         }
         removeAccount(accountId);
+        mPrefetcher.removeAccount(accountId);
     }
 
     protected abstract void removeAccount(String accountId) throws Exception;
 
+    /**
+     * Enables or disables recording of per-operation latency, error and transfer metrics. Metrics
+     * can be read by the main app with getMetrics(), or dumped with
+     * <code>adb shell dumpsys activity service your.package/.YourService</code>.
+     * <p/>
+     * Disabled by default; recording costs a volatile read per call while disabled.
+     */
+    protected final void setMetricsEnabled(boolean enabled) {
+        mMetrics.setEnabled(enabled);
+    }
+
+    /**
+     * Enables or disables tracing of individual calls. Each call gets a request ID and a span, and
+     * {@link #beginTraceSection(String)} can be used to break a call down into steps (e.g. refreshing
+     * a token, then fetching a page of results). Sections also show up in systrace/Perfetto.
+     * <p/>
+     * The most recent spans can be exported as Chrome trace JSON with {@link #exportTrace()}, or
+     * <code>adb shell dumpsys activity service your.package/.YourService trace</code>.
+     */
+    protected final void setTracingEnabled(boolean enabled) {
+        mTracer.setEnabled(enabled);
+    }
+
+    /**
+     * Starts a traced step within the call running on this thread. Must be paired with
+     * {@link #endTraceSection()} on the same thread; does nothing if tracing is disabled.
+     */
+    protected final void beginTraceSection(@NonNull String name) {
+        mTracer.beginSpan(name);
+    }
+
+    protected final void endTraceSection() {
+        mTracer.endSpan();
+    }
+
+    /**
+     * Returns the most recent trace spans in the Chrome trace event JSON format.
+     */
+    protected final String exportTrace() {
+        return mTracer.exportChromeTrace();
+    }
+
+    /**
+     * Lists a folder, sharing the backend call with any identical listing already in flight.
+     * Transient failures are retried a couple of times before they're returned.
+     */
+    List<PluginFile> listFilesShared(final PluginFile parent) throws Exception {
+        return mSingleFlight.execute(
+                singleFlightKey(PluginMetrics.OP_LIST_FILES, parent != null ? parent.getPath() : null),
+                new Callable<List<PluginFile>>() {
+                    @Override
+                    public List<PluginFile> call() throws Exception {
+                        return retryRead(new Callable<List<PluginFile>>() {
+                            @Override
+                            public List<PluginFile> call() throws Exception {
+                                return listFiles(parent);
+                            }
+                        });
+                    }
+                });
+    }
+
+    private String singleFlightKey(String operation, String path) {
+        return operation + '|' + getCurrentAccount() + '|' + path;
+    }
+
+    /**
+     * Records the time from the first bind to the first listing served, which is what the user
+     * waits for after tapping the plugin.
+     */
+    private void recordColdStart() {
+        if (mBoundAt == 0 || !mColdStartRecorded.compareAndSet(false, true)) return;
+        final long duration = System.nanoTime() - mBoundAt;
+        mMetrics.record(PluginMetrics.OP_COLD_START, duration, true, 0);
+        log("Cold start took " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms");
+    }
+
+    /**
+     * Makes a call to the backend. If it fails because the account's credentials expired, waits
+     * for them to be refreshed (see {@link #refreshCredentials(String)}) and makes it once more.
+     */
+    <V> V callWithCredentials(Callable<V> call) throws Exception {
+        final int generation = mCredentialsGeneration.get();
+        try {
+            return call.call();
+        } catch (Exception e) {
+            if (!PluginException.from(e).needsAuthRefresh() || !awaitCredentials(generation))
+                throw e;
+            return call.call();
+        }
+    }
+
+    /**
+     * Returns whether the current account's credentials were refreshed since the given generation,
+     * refreshing them if no one else has. Concurrent callers share one refresh.
+     */
+    private boolean awaitCredentials(int generation) {
+        // Refreshed by someone else while the caller's call was failing
+        if (mCredentialsGeneration.get() != generation) return true;
+        final String account = getCurrentAccount();
+        try {
+            return mSingleFlight.execute("refreshCredentials|" + account + '|' + generation,
+                    new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            final long start = System.nanoTime();
+                            boolean refreshed = false;
+                            try {
+                                refreshed = refreshCredentials(account);
+                                if (refreshed)
+                                    mCredentialsGeneration.incrementAndGet();
+                                return refreshed;
+                            } finally {
+                                mMetrics.record(PluginMetrics.OP_REFRESH_CREDENTIALS,
+                                        System.nanoTime() - start, refreshed, 0);
+                                log("Refreshing credentials of " + account + (refreshed ? " succeeded" : " failed"));
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            log("Failed to refresh credentials of " + account + ": " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Makes an idempotent read, retrying it if it fails transiently or the credentials expired.
+     */
+    private <V> V retryRead(final Callable<V> call) throws Exception {
+        return mReadRetries.execute(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return callWithCredentials(call);
+            }
+        });
+    }
+
+    /**
+     * Returns the error to fail a call with without making it: not connected, or too many recent
+     * calls to the current account failed (see {@link CircuitBreaker}). Null if the call can go
+     * ahead.
+     */
+    PluginError checkAvailable() {
+        if (!isConnected())
+            return new PluginError(PluginError.ERROR_NOT_CONNECTED, getString(R.string.not_connected), false, 0);
+        // Most of the time no account has failures on record, and the plugin needn't be asked which is current
+        return mCircuits.isTracking() ? mCircuits.check(getCurrentAccount()) : null;
+    }
+
+    /**
+     * Classifies the exception a call failed with, and counts it against the current account's
+     * circuit if it was transient.
+     */
+    PluginError recordFailure(Exception e) {
+        final PluginError error = PluginError.from(e);
+        mCircuits.onFailure(getCurrentAccount(), error);
+        return error;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return mCircuits;
+    }
+
+    /**
+     * What {@link #beginOperation(String)} started: whether it counts towards the metrics, whether
+     * it's traced, and when it started. Calls that nothing measures share {@link #UNTIMED}.
+     */
+    private static class Call {
+
+        final boolean metrics;
+        final boolean traced;
+        final long start;
+
+        Call(boolean metrics, boolean traced, long start) {
+            this.metrics = metrics;
+            this.traced = traced;
+            this.start = start;
+        }
+    }
+
+    private final static Call UNTIMED = new Call(false, false, 0);
+
+    /**
+     * Operations that don't change anything, so they leave prefetched listings alone.
+     */
+    private final static Set<String> READ_OPERATIONS = new HashSet<>(Arrays.asList(
+            PluginMetrics.OP_LIST_FILES, PluginMetrics.OP_LIST_FILES_PAGED, PluginMetrics.OP_EXISTS,
+            PluginMetrics.OP_EXISTS_ALL, PluginMetrics.OP_OPEN_FILE, PluginMetrics.OP_DOWNLOAD,
+            PluginMetrics.OP_OPEN_READ_STREAM));
+
+    private Call beginOperation(String operation) {
+        final boolean traced = mTracer.beginRequest(operation);
+        final boolean metrics = mMetrics.begin(operation);
+        // Background transfers back off if calls from the main app slow down, so those are timed too
+        if (!metrics && !traced && !mScheduler.isSampling())
+            return UNTIMED;
+        return new Call(metrics, traced, System.nanoTime());
+    }
+
+    private void endOperation(String operation, Call call, boolean success, long bytes) {
+        if (call != UNTIMED) {
+            final long duration = System.nanoTime() - call.start;
+            mMetrics.end(operation, call.metrics, duration, success, bytes);
+            if (!mScheduler.isBackgroundThread())
+                mScheduler.onForegroundCall(operation, duration);
+            if (call.traced)
+                mTracer.endRequest(success);
+        }
+        // Paged listings count their outcome in the producer, against the account that was listed.
+        // The account is only looked up if some account has failures on record to reset.
+        if (success && mCircuits.isTracking() && !PluginMetrics.OP_LIST_FILES_PAGED.equals(operation))
+            mCircuits.onSuccess(getCurrentAccount());
+        if (!READ_OPERATIONS.contains(operation))
+            mPrefetcher.invalidate();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (args != null && args.length > 0 && "trace".equals(args[0])) {
+            writer.println(exportTrace());
+            return;
+        }
+        writer.println(getClass().getName() + " (connected: " + isConnected() + ")");
+        mMetrics.dump(writer);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
+        if (mBoundAt == 0)
+            mBoundAt = System.nanoTime();
         return mBinder;
     }
 
@@ -375,164 +1379,484 @@ public abstract class PluginService extends Service {
         public PluginErrorResult connect() throws RemoteException {
             if (isConnected())
                 return new PluginErrorResult(getString(R.string.already_connected));
+            final Call call = beginOperation(PluginMetrics.OP_CONNECT);
+            boolean success = false;
             try {
                 PluginService.this.startConnect();
+                success = true;
                 return null;
             } catch (Exception e) {
                 refreshNotification(getString(R.string.connect_error));
                 e.printStackTrace();
-                return new PluginErrorResult(e.getLocalizedMessage());
+                return PluginErrorResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_CONNECT, call, success, 0);
             }
         }
 
         @Override
-        public PluginUriResult openFile(PluginFile file, boolean watch) throws RemoteException {
-            if (!isConnected())
-                return new PluginUriResult(getString(R.string.not_connected), null);
+        public PluginUriResult openFile(final PluginFile file, final boolean watch) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginUriResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_OPEN_FILE);
+            boolean success = false;
             try {
-                Uri uri = PluginService.this.performOpenFile(file, watch);
+                Uri uri = callWithCredentials(new Callable<Uri>() {
+                    @Override
+                    public Uri call() throws Exception {
+                        return PluginService.this.performOpenFile(file, watch);
+                    }
+                });
+                success = true;
                 return new PluginUriResult(null, uri);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginUriResult(e.getLocalizedMessage(), null);
+                return PluginUriResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_OPEN_FILE, call, success, success ? file.getLength() : 0);
             }
         }
 
         @Override
-        public PluginFileResult upload(Uri local, PluginFile dest) throws RemoteException {
-            refreshNotification(getString(R.string.uploading_files));
+        public PluginFileResult upload(final Uri local, final PluginFile dest) throws RemoteException {
+            final PluginError unavailable = mCircuits.isTracking() ?
+                    mCircuits.check(PluginService.this.getCurrentAccount()) : null;
+            if (unavailable != null)
+                return PluginFileResult.failed(unavailable);
+            mNotifications.beginUpload();
+            final Call call = beginOperation(PluginMetrics.OP_UPLOAD);
+            boolean success = false;
+            PluginFile file = null;
             try {
-                PluginFile file = PluginService.this.upload(local, dest);
+                file = callWithCredentials(new Callable<PluginFile>() {
+                    @Override
+                    public PluginFile call() throws Exception {
+                        return PluginService.this.upload(local, dest);
+                    }
+                });
+                success = true;
                 return new PluginFileResult(null, file);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginFileResult(e.getLocalizedMessage(), null);
+                return PluginFileResult.failed(recordFailure(e));
             } finally {
-                refreshNotification(getString(R.string.connected));
+                endOperation(PluginMetrics.OP_UPLOAD, call, success, file != null ? file.getLength() : 0);
+                mNotifications.endUpload();
             }
         }
 
         @Override
-        public PluginUriResult download(PluginFile source, Uri dest) throws RemoteException {
+        public PluginUriResult download(final PluginFile source, final Uri dest) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginUriResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_DOWNLOAD);
+            boolean success = false;
             try {
-                Uri uri = PluginService.this.download(source, dest);
+                Uri uri;
+                final InputStream cached = mPrefetcher.openCachedFile(PluginService.this.getCurrentAccount(), source);
+                if (cached != null) {
+                    try {
+                        PluginService.this.copy(cached, source.getLength(), dest, null);
+                    } finally {
+                        cached.close();
+                    }
+                    uri = dest;
+                } else {
+                    uri = callWithCredentials(new Callable<Uri>() {
+                        @Override
+                        public Uri call() throws Exception {
+                            return PluginService.this.download(source, dest);
+                        }
+                    });
+                }
+                success = true;
                 return new PluginUriResult(null, uri);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginUriResult(e.getLocalizedMessage(), null);
+                return PluginUriResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_DOWNLOAD, call, success, success ? source.getLength() : 0);
             }
         }
 
         @Override
         public PluginLsResult listFiles(PluginFile parent) throws RemoteException {
-            if (!isConnected())
-                return new PluginLsResult(getString(R.string.not_connected), null);
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginLsResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_LIST_FILES);
+            boolean success = false;
             try {
-                List<PluginFile> results = PluginService.this.listFiles(parent);
+                final String account = PluginService.this.getCurrentAccount();
+                List<PluginFile> results = mPrefetcher.takeListing(account, parent != null ? parent.getPath() : null);
+                if (results == null)
+                    results = listFilesShared(parent);
+                success = true;
+                recordColdStart();
+                mPrefetcher.onListed(account, parent, results);
                 return new PluginLsResult(null, results);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginLsResult(e.getLocalizedMessage(), null);
+                return PluginLsResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_LIST_FILES, call, success, 0);
+            }
+        }
+
+        @Override
+        public PluginLsResult listFilesPaged(final PluginFile parent, int pageSize) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginLsResult.failed(unavailable);
+            final String account = PluginService.this.getCurrentAccount();
+            final String cursor = mPager.start(pageSize, new ListingPager.Producer() {
+                @Override
+                public void produce(PluginFileSink sink) throws Exception {
+                    try {
+                        PluginService.this.listFiles(parent, sink);
+                        mCircuits.onSuccess(account);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        mCircuits.onFailure(account, PluginError.from(e));
+                        throw e;
+                    }
+                }
+            });
+            return nextPage(cursor);
+        }
+
+        @Override
+        public PluginLsResult listFilesAggregated(final PluginFile parent, final String[] accountIds, int sortBy,
+                                                  int pageSize) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginLsResult.failed(unavailable);
+            final ListingMerger merger = new ListingMerger(mStreamExecutor, sortBy);
+            final String cursor = mPager.start(pageSize, new ListingPager.Producer() {
+                @Override
+                public void produce(PluginFileSink sink) throws Exception {
+                    merger.merge(accountIds, new ListingMerger.Source() {
+                        @Override
+                        public void list(String accountId, PluginFileSink sink) throws Exception {
+                            listAccount(accountId, parent, sink);
+                        }
+                    }, sink);
+                }
+            });
+            return nextPage(cursor);
+        }
+
+        @Override
+        public PluginLsResult nextPage(String cursor) throws RemoteException {
+            final Call call = beginOperation(PluginMetrics.OP_LIST_FILES_PAGED);
+            boolean success = false;
+            try {
+                final PluginLsResult result = mPager.next(cursor);
+                success = result.getError() == null;
+                if (success)
+                    recordColdStart();
+                return result;
+            } catch (InterruptedException e) {
+                mPager.cancel(cursor);
+                return PluginLsResult.failed(PluginError.from(e));
+            } finally {
+                endOperation(PluginMetrics.OP_LIST_FILES_PAGED, call, success, 0);
+            }
+        }
+
+        @Override
+        public void cancelPaging(String cursor) throws RemoteException {
+            mPager.cancel(cursor);
+        }
+
+        @Override
+        public PluginFileResult makeFile(final String displayName, final PluginFile parent) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginFileResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_MAKE_FILE);
+            boolean success = false;
+            try {
+                PluginFile result = callWithCredentials(new Callable<PluginFile>() {
+                    @Override
+                    public PluginFile call() throws Exception {
+                        return PluginService.this.makeFile(displayName, parent);
+                    }
+                });
+                success = true;
+                return new PluginFileResult(null, result);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return PluginFileResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_MAKE_FILE, call, success, 0);
+            }
+        }
+
+        @Override
+        public PluginFileResult makeFolder(final String displayName, final PluginFile parent) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginFileResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_MAKE_FOLDER);
+            boolean success = false;
+            try {
+                PluginFile result = callWithCredentials(new Callable<PluginFile>() {
+                    @Override
+                    public PluginFile call() throws Exception {
+                        return PluginService.this.makeFolder(displayName, parent);
+                    }
+                });
+                success = true;
+                return new PluginFileResult(null, result);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return PluginFileResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_MAKE_FOLDER, call, success, 0);
             }
         }
 
         @Override
-        public PluginFileResult makeFile(String displayName, PluginFile parent) throws RemoteException {
-            if (!isConnected())
-                return new PluginFileResult(getString(R.string.not_connected), null);
+        public PluginFileResult copy(final PluginFile source, final PluginFile dest) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginFileResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_COPY);
+            boolean success = false;
             try {
-                PluginFile result = PluginService.this.makeFile(displayName, parent);
+                PluginFile result = callWithCredentials(new Callable<PluginFile>() {
+                    @Override
+                    public PluginFile call() throws Exception {
+                        return PluginService.this.copy(source, dest);
+                    }
+                });
+                success = true;
                 return new PluginFileResult(null, result);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginFileResult(e.getLocalizedMessage(), null);
+                return PluginFileResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_COPY, call, success, 0);
             }
         }
 
         @Override
-        public PluginFileResult makeFolder(String displayName, PluginFile parent) throws RemoteException {
-            if (!isConnected())
-                return new PluginFileResult(getString(R.string.not_connected), null);
+        public PluginFileResult move(final PluginFile source, final PluginFile dest) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginFileResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_MOVE);
+            boolean success = false;
             try {
-                PluginFile result = PluginService.this.makeFolder(displayName, parent);
+                PluginFile result = callWithCredentials(new Callable<PluginFile>() {
+                    @Override
+                    public PluginFile call() throws Exception {
+                        return PluginService.this.move(source, dest);
+                    }
+                });
+                success = true;
                 return new PluginFileResult(null, result);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginFileResult(e.getLocalizedMessage(), null);
+                return PluginFileResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_MOVE, call, success, 0);
             }
         }
 
         @Override
-        public PluginFileResult copy(PluginFile source, PluginFile dest) throws RemoteException {
-            if (!isConnected())
-                return new PluginFileResult(getString(R.string.not_connected), null);
+        public ParcelFileDescriptor openReadStream(PluginFile source) throws RemoteException {
+            if (checkAvailable() != null)
+                return null;
+            final Call call = beginOperation(PluginMetrics.OP_OPEN_READ_STREAM);
+            boolean success = false;
             try {
-                PluginFile result = PluginService.this.copy(source, dest);
+                ParcelFileDescriptor fd = PluginService.this.performOpenReadStream(source);
+                success = true;
+                return fd;
+            } catch (Exception e) {
+                e.printStackTrace();
+                recordFailure(e);
+                return null;
+            } finally {
+                endOperation(PluginMetrics.OP_OPEN_READ_STREAM, call, success, 0);
+            }
+        }
+
+        @Override
+        public PluginFileResult uploadStream(ParcelFileDescriptor source, long length, PluginFile dest) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginFileResult.failed(unavailable);
+            mNotifications.beginUpload();
+            final Call call = beginOperation(PluginMetrics.OP_UPLOAD_STREAM);
+            boolean success = false;
+            InputStream is = null;
+            try {
+                is = new ParcelFileDescriptor.AutoCloseInputStream(source);
+                PluginFile result = PluginService.this.upload(is, length, dest);
+                success = true;
                 return new PluginFileResult(null, result);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginFileResult(e.getLocalizedMessage(), null);
+                return PluginFileResult.failed(recordFailure(e));
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                endOperation(PluginMetrics.OP_UPLOAD_STREAM, call, success, success ? length : 0);
+                mNotifications.endUpload();
             }
         }
 
         @Override
-        public PluginErrorResult remove(PluginFile file) throws RemoteException {
-            if (!isConnected())
-                return new PluginErrorResult(getString(R.string.not_connected));
+        public PluginErrorResult remove(final PluginFile file) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginErrorResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_REMOVE);
+            boolean success = false;
             try {
-                if (!PluginService.this.remove(file))
+                final boolean removed = callWithCredentials(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return PluginService.this.remove(file);
+                    }
+                });
+                if (!removed)
                     return new PluginErrorResult("Unable to remove file or folder " + file);
+                success = true;
                 return null;
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginErrorResult(e.getLocalizedMessage());
+                return PluginErrorResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_REMOVE, call, success, 0);
             }
         }
 
         @Override
-        public PluginErrorResult chmod(int permissions, PluginFile target) throws RemoteException {
-            if (!isConnected())
-                return new PluginErrorResult(getString(R.string.not_connected));
+        public PluginErrorResult chmod(final int permissions, final PluginFile target) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginErrorResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_CHMOD);
+            boolean success = false;
             try {
-                PluginService.this.chmod(permissions, target);
+                callWithCredentials(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        PluginService.this.chmod(permissions, target);
+                        return null;
+                    }
+                });
+                success = true;
                 return null;
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginErrorResult(e.getLocalizedMessage());
+                return PluginErrorResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_CHMOD, call, success, 0);
             }
         }
 
         @Override
-        public PluginErrorResult chown(int uid, PluginFile target) throws RemoteException {
-            if (!isConnected())
-                return new PluginErrorResult(getString(R.string.not_connected));
+        public PluginErrorResult chown(final int uid, final PluginFile target) throws RemoteException {
+            final PluginError unavailable = checkAvailable();
+            if (unavailable != null)
+                return PluginErrorResult.failed(unavailable);
+            final Call call = beginOperation(PluginMetrics.OP_CHOWN);
+            boolean success = false;
             try {
-                PluginService.this.chown(uid, target);
+                callWithCredentials(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        PluginService.this.chown(uid, target);
+                        return null;
+                    }
+                });
+                success = true;
                 return null;
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginErrorResult(e.getLocalizedMessage());
+                return PluginErrorResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_CHOWN, call, success, 0);
             }
         }
 
         @Override
-        public boolean exists(String path) throws RemoteException {
-            if (!isConnected())
+        public boolean exists(final String path) throws RemoteException {
+            if (checkAvailable() != null)
                 return false;
+            final Call call = beginOperation(PluginMetrics.OP_EXISTS);
+            boolean success = false;
             try {
-                return PluginService.this.exists(path);
+                final boolean exists = mSingleFlight.execute(singleFlightKey(PluginMetrics.OP_EXISTS, path),
+                        new Callable<Boolean>() {
+                            @Override
+                            public Boolean call() throws Exception {
+                                return retryRead(new Callable<Boolean>() {
+                                    @Override
+                                    public Boolean call() throws Exception {
+                                        return PluginService.this.exists(path);
+                                    }
+                                });
+                            }
+                        });
+                success = true;
+                return exists;
             } catch (Exception e) {
                 e.printStackTrace();
+                recordFailure(e);
                 return false;
+            } finally {
+                endOperation(PluginMetrics.OP_EXISTS, call, success, 0);
+            }
+        }
+
+        @Override
+        public boolean[] existsAll(final String[] paths) throws RemoteException {
+            if (checkAvailable() != null)
+                return new boolean[paths.length];
+            final Call call = beginOperation(PluginMetrics.OP_EXISTS_ALL);
+            boolean success = false;
+            try {
+                final boolean[] exists = retryRead(new Callable<boolean[]>() {
+                    @Override
+                    public boolean[] call() throws Exception {
+                        return existsInBatches(paths);
+                    }
+                });
+                success = true;
+                return exists;
+            } catch (Exception e) {
+                e.printStackTrace();
+                recordFailure(e);
+                return new boolean[paths.length];
+            } finally {
+                endOperation(PluginMetrics.OP_EXISTS_ALL, call, success, 0);
             }
         }
 
         @Override
         public void disconnect() throws RemoteException {
+            final Call call = beginOperation(PluginMetrics.OP_DISCONNECT);
+            boolean success = false;
             try {
                 PluginService.this.startDisconnect();
+                success = true;
             } catch (Exception e) {
                 e.printStackTrace();
+            } finally {
+                endOperation(PluginMetrics.OP_DISCONNECT, call, success, 0);
             }
         }
 
@@ -570,24 +1894,56 @@ public abstract class PluginService extends Service {
 
         @Override
         public PluginErrorResult setCurrentAccount(String id) throws RemoteException {
+            final Call call = beginOperation(PluginMetrics.OP_SET_CURRENT_ACCOUNT);
+            boolean success = false;
             try {
                 PluginService.this.setCurrentAccount(id);
+                mTransfers.resume();
+                success = true;
                 return null;
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginErrorResult(e.getLocalizedMessage());
+                return PluginErrorResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_SET_CURRENT_ACCOUNT, call, success, 0);
             }
         }
 
         @Override
         public PluginErrorResult removeAccount(String id) throws RemoteException {
+            final Call call = beginOperation(PluginMetrics.OP_REMOVE_ACCOUNT);
+            boolean success = false;
             try {
                 PluginService.this.performRemoveAccount(id);
+                success = true;
+                return null;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return PluginErrorResult.failed(recordFailure(e));
+            } finally {
+                endOperation(PluginMetrics.OP_REMOVE_ACCOUNT, call, success, 0);
+            }
+        }
+
+        @Override
+        public PluginErrorResult queueUpload(Uri local, PluginFile dest) throws RemoteException {
+            try {
+                enqueueUpload(local, dest);
                 return null;
             } catch (Exception e) {
                 e.printStackTrace();
-                return new PluginErrorResult(e.getLocalizedMessage());
+                return PluginErrorResult.failed(recordFailure(e));
             }
         }
+
+        @Override
+        public PluginMetrics getMetrics() throws RemoteException {
+            return mMetrics.snapshot();
+        }
+
+        @Override
+        public PluginCapabilities getCapabilities() throws RemoteException {
+            return capabilities();
+        }
     };
 }
\ No newline at end of file
@@ -11,27 +11,47 @@ import java.io.Serializable;
  *
  * @author Aidan Follestad (afollestad)
  */
-class PluginUriResult implements Parcelable, Serializable {
+public class PluginUriResult implements Parcelable, Serializable {
 
     private static final long serialVersionUID = 2568771528989642943L;
 
     private final String mError;
+    private final PluginError mErrorDetails;
     private final Uri mUri;
 
     public PluginUriResult(Parcel in) {
         mError = in.readString();
         mUri = in.readParcelable(Uri.class.getClassLoader());
+        mErrorDetails = PluginError.read(in, mError);
     }
 
     public PluginUriResult(String error, Uri uri) {
         mError = error;
+        mErrorDetails = PluginError.of(error);
         mUri = uri;
     }
 
+    private PluginUriResult(PluginError error) {
+        mError = error.getMessage();
+        mErrorDetails = error;
+        mUri = null;
+    }
+
+    public static PluginUriResult failed(PluginError error) {
+        return new PluginUriResult(error);
+    }
+
     public String getError() {
         return mError;
     }
 
+    /**
+     * Details of the error, null if the call succeeded.
+     */
+    public PluginError getErrorDetails() {
+        return mErrorDetails;
+    }
+
     public Uri getUri() {
         return mUri;
     }
@@ -45,6 +65,7 @@ class PluginUriResult implements Parcelable, Serializable {
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeString(mError);
         dest.writeParcelable(mUri, flags);
+        PluginError.write(dest, mErrorDetails);
     }
 
     public static final Creator<PluginUriResult> CREATOR = new Creator<PluginUriResult>() {
@@ -0,0 +1,340 @@
+package com.afollestad.cabinet.plugins;
+
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Speculatively lists the subfolders of a folder the user just opened, and optionally downloads
+ * its small files, so that drilling down doesn't cost a round trip. Folders the user has opened
+ * more often are prefetched first.
+ * <p/>
+ * Prefetching runs on a single low priority thread as background transfers (see
+ * {@link TransferScheduler}), and whatever is still pending is abandoned as soon as the user lists
+ * another folder.
+ * <p/>
+ * With an {@link EncryptedCache}, prefetched files are stored encrypted and outlive the service,
+ * so they're reused by later sessions as long as the remote file hasn't changed. Plugins that
+ * stream reads (see {@link PluginCapabilities#STREAMED_READ}) are encrypted as they're read;
+ * otherwise download() needs a plaintext copy, which is deleted once it's encrypted and is wiped
+ * with the rest of the cache if the service dies first.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class Prefetcher {
+
+    private final static long LISTING_TTL = TimeUnit.SECONDS.toMillis(30);
+    private final static int MAX_LISTINGS = 32;
+    private final static int MAX_HISTORY = 256;
+
+    private final PluginService mService;
+    private final File mCacheDir;
+    private final EncryptedCache mEncryption;
+    private final ExecutorService mExecutor;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final LruCache<String, Listing> mListings = new LruCache<>(MAX_LISTINGS);
+    /**
+     * Counts calls to {@link #invalidate()}, guarded by mListings.
+     */
+    private int mInvalidations;
+    private final Map<String, Integer> mHistory = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_HISTORY;
+        }
+    };
+
+    public Prefetcher(PluginService service, File cacheDir, EncryptedCache encryption) {
+        mService = service;
+        mCacheDir = cacheDir;
+        mEncryption = encryption;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "Prefetcher");
+            }
+        });
+    }
+
+    /**
+     * Returns and removes a prefetched listing of the folder, if there is a fresh one.
+     */
+    public List<PluginFile> takeListing(String account, String path) {
+        final Listing listing = mListings.remove(key(account, path));
+        if (listing == null || SystemClock.elapsedRealtime() - listing.time > LISTING_TTL)
+            return null;
+        return listing.files;
+    }
+
+    /**
+     * Opens the prefetched copy of a file if it's still current, or returns null.
+     */
+    public InputStream openCachedFile(String account, PluginFile remote) {
+        final File file = cacheFile(account, remote);
+        if (!isCurrent(file, remote)) return null;
+        try {
+            return mEncryption != null ? mEncryption.openRead(account, file, 0) : new FileInputStream(file);
+        } catch (IOException e) {
+            Log.d("Prefetcher", "Discarding unreadable copy of " + remote + ": " + e.getLocalizedMessage());
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Whether a prefetched copy is of the remote file as it is now. Copies carry the remote file's
+     * modified date as their own (see {@link #prefetchFile(String, PluginFile)}), so any change to
+     * the remote file, even to an older date, is noticed.
+     */
+    private boolean isCurrent(File file, PluginFile remote) {
+        if (!file.exists()) return false;
+        final long length = mEncryption != null ? EncryptedCache.plaintextLength(file) : file.length();
+        return length == remote.getLength() && file.lastModified() == remote.getModified();
+    }
+
+    /**
+     * Whether prefetched files are kept when the service is destroyed.
+     */
+    public boolean isPersistent() {
+        return mEncryption != null;
+    }
+
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    /**
+     * Called when the user lists a folder. Cancels prefetching for the previous folder and starts
+     * prefetching for this one.
+     */
+    public void onListed(final String account, PluginFile parent, List<PluginFile> results) {
+        final int generation = mGeneration.incrementAndGet();
+        final int count = mService.getPrefetchCount();
+        final long maxFileSize = mService.getPrefetchFileSizeLimit();
+        if ((count <= 0 && maxFileSize <= 0) || results == null) return;
+
+        final List<PluginFile> folders = new ArrayList<>();
+        final List<PluginFile> files = new ArrayList<>();
+        synchronized (mHistory) {
+            final String path = parent != null ? parent.getPath() : null;
+            final Integer visits = mHistory.get(key(account, path));
+            mHistory.put(key(account, path), visits != null ? visits + 1 : 1);
+            for (PluginFile file : results) {
+                if (file == null) continue;
+                if (file.isDir())
+                    folders.add(file);
+                else if (maxFileSize > 0 && file.getLength() > 0 && file.getLength() <= maxFileSize)
+                    files.add(file);
+            }
+            // Hot folders first, the listing's own order breaks ties (sort is stable)
+            Collections.sort(folders, new Comparator<PluginFile>() {
+                @Override
+                public int compare(PluginFile lhs, PluginFile rhs) {
+                    return visits(account, rhs) - visits(account, lhs);
+                }
+            });
+        }
+
+        final List<PluginFile> toList = folders.subList(0, Math.min(Math.max(count, 0), folders.size()));
+        for (final PluginFile folder : toList) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mGeneration.get()) return;
+                    prefetchListing(account, folder);
+                }
+            });
+        }
+
+        long budget = mService.getPrefetchBudget();
+        for (final PluginFile file : files) {
+            if (budget < file.getLength()) break;
+            budget -= file.getLength();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mGeneration.get()) return;
+                    prefetchFile(account, file);
+                }
+            });
+        }
+    }
+
+    private int visits(String account, PluginFile folder) {
+        final Integer visits = mHistory.get(key(account, folder.getPath()));
+        return visits != null ? visits : 0;
+    }
+
+    private void prefetchListing(String account, PluginFile folder) {
+        final TransferScheduler scheduler = mService.getTransferScheduler();
+        try {
+            scheduler.beginBackground();
+        } catch (InterruptedException e) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            if (!mService.isConnected() || !equal(account, mService.getCurrentAccount())) return;
+            final int invalidations;
+            synchronized (mListings) {
+                invalidations = mInvalidations;
+            }
+            final List<PluginFile> files = mService.listFilesShared(folder);
+            synchronized (mListings) {
+                // A write while the listing was fetched may not be in it
+                if (invalidations == mInvalidations)
+                    mListings.put(key(account, folder.getPath()), new Listing(files));
+            }
+        } catch (Exception e) {
+            Log.d("Prefetcher", "Failed to prefetch " + folder + ": " + e.getLocalizedMessage());
+        } finally {
+            scheduler.endBackground(0, System.nanoTime() - start);
+        }
+    }
+
+    private void prefetchFile(String account, PluginFile remote) {
+        if (isCurrent(cacheFile(account, remote), remote)) return;
+        final TransferScheduler scheduler = mService.getTransferScheduler();
+        try {
+            scheduler.beginBackground();
+        } catch (InterruptedException e) {
+            return;
+        }
+        final long start = System.nanoTime();
+        boolean success = false;
+        final File target = cacheFile(account, remote);
+        File plain = target;
+        try {
+            if (!mService.isConnected() || !equal(account, mService.getCurrentAccount())) return;
+            //noinspection ResultOfMethodCallIgnored
+            target.getParentFile().mkdirs();
+            if (mEncryption != null && mService.capabilities().supports(PluginCapabilities.STREAMED_READ)) {
+                final InputStream is = mService.openRemoteStream(remote);
+                try {
+                    encrypt(account, is, target);
+                } finally {
+                    is.close();
+                }
+            } else {
+                if (mEncryption != null)
+                    // Outside mCacheDir, which is kept, so a plaintext copy left by a crash is wiped
+                    plain = File.createTempFile("prefetch", null, mService.getCacheDir());
+                mService.download(remote, Uri.fromFile(plain));
+                if (mEncryption != null) {
+                    final InputStream is = new FileInputStream(plain);
+                    try {
+                        encrypt(account, is, target);
+                    } finally {
+                        is.close();
+                    }
+                }
+            }
+            // Without the remote file's date, there's no telling later whether the copy is current
+            success = remote.getModified() > 0 && target.setLastModified(remote.getModified()) &&
+                    target.lastModified() == remote.getModified();
+        } catch (Exception e) {
+            Log.d("Prefetcher", "Failed to prefetch " + remote + ": " + e.getLocalizedMessage());
+        } finally {
+            if (plain != target) {
+                //noinspection ResultOfMethodCallIgnored
+                plain.delete();
+            }
+            if (!success) {
+                //noinspection ResultOfMethodCallIgnored
+                target.delete();
+            }
+            scheduler.endBackground(success ? remote.getLength() : 0, System.nanoTime() - start);
+        }
+    }
+
+    private void encrypt(String account, InputStream is, File target) throws IOException {
+        final OutputStream os = mEncryption.openWrite(account, target);
+        try {
+            final byte[] buffer = new byte[EncryptedCache.CHUNK_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                os.write(buffer, 0, read);
+        } finally {
+            os.close();
+        }
+    }
+
+    private File cacheFile(String account, PluginFile remote) {
+        final String name = Integer.toHexString(key(account, remote.getPath()).hashCode()) + "-" + remote.getName();
+        return new File(mCacheDir, name);
+    }
+
+    /**
+     * Drops prefetched listings, called after anything that may have changed them.
+     */
+    public void invalidate() {
+        synchronized (mListings) {
+            mInvalidations++;
+            mListings.evictAll();
+        }
+    }
+
+    /**
+     * Abandons anything that hasn't started, e.g. when the user navigates away.
+     */
+    public void cancel() {
+        mGeneration.incrementAndGet();
+    }
+
+    /**
+     * Called when an account is removed. Its key is dropped, so its encrypted files are unreadable.
+     */
+    public void removeAccount(String account) {
+        if (mEncryption != null)
+            mEncryption.removeKey(account);
+    }
+
+    public void shutdown() {
+        cancel();
+        mExecutor.shutdownNow();
+        mListings.evictAll();
+    }
+
+    private static String key(String account, String path) {
+        return account + '|' + path;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class Listing {
+        final List<PluginFile> files;
+        final long time = SystemClock.elapsedRealtime();
+
+        Listing(List<PluginFile> files) {
+            this.files = files;
+        }
+    }
+}
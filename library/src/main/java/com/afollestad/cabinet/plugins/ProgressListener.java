@@ -0,0 +1,15 @@
+package com.afollestad.cabinet.plugins;
+
+/**
+ * Receives progress updates from the copy helpers in {@link PluginService}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public interface ProgressListener {
+
+    /**
+     * @param transferred The number of bytes copied so far.
+     * @param total       The total number of bytes, or -1 if unknown.
+     */
+    void onProgress(long transferred, long total);
+}
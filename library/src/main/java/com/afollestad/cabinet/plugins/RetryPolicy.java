@@ -0,0 +1,70 @@
+package com.afollestad.cabinet.plugins;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * When and how soon to retry a failed call: exponential backoff with jitter, so callers that
+ * failed together don't all retry at the same moment, and never sooner than the backend asked
+ * for with {@link PluginError#getRetryAfter()}.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class RetryPolicy {
+
+    private final int mMaxAttempts;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final boolean mRetryUnknown;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param retryUnknown Whether unclassified errors ({@link PluginError#ERROR_UNKNOWN}) are
+     *                     retried, for callers that used to retry everything.
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, boolean retryUnknown) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRetryUnknown = retryUnknown;
+    }
+
+    /**
+     * Whether a call that has failed the given number of times should be made again.
+     */
+    public boolean shouldRetry(PluginError error, int attempts) {
+        if (attempts >= mMaxAttempts) return false;
+        return error.isRetryable() || (mRetryUnknown && error.getCode() == PluginError.ERROR_UNKNOWN);
+    }
+
+    /**
+     * Returns how long to wait before the next attempt of a call that has failed the given number
+     * of times: somewhere between half and all of the exponential backoff. The error may be null.
+     */
+    public long getDelay(PluginError error, int attempts) {
+        final long backoff = Math.min(mMaxDelay, mBaseDelay << Math.min(Math.max(0, attempts - 1), 16));
+        final long jitter;
+        synchronized (mRandom) {
+            jitter = (long) (mRandom.nextDouble() * (backoff / 2));
+        }
+        return Math.max(backoff / 2 + jitter, error != null ? error.getRetryAfter() : 0);
+    }
+
+    /**
+     * Makes a call, retrying it on the calling thread while the policy allows. Gives up early if
+     * the backend asks to wait longer than the maximum delay, rather than blocking for it.
+     */
+    public <V> V execute(Callable<V> call) throws Exception {
+        for (int attempts = 1; ; attempts++) {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                final PluginError error = PluginError.from(e);
+                if (!shouldRetry(error, attempts)) throw e;
+                final long delay = getDelay(error, attempts);
+                if (delay > mMaxDelay) throw e;
+                Thread.sleep(delay);
+            }
+        }
+    }
+}
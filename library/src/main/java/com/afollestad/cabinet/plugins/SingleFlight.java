@@ -0,0 +1,46 @@
+package com.afollestad.cabinet.plugins;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Deduplicates concurrent identical calls. The first caller for a key runs the call; callers that
+ * arrive while it's in flight wait for it and receive the same result (or exception) instead of
+ * making their own call.
+ * <p/>
+ * Only use this for reads, and make sure the key covers everything the result depends on.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class SingleFlight {
+
+    private final ConcurrentMap<String, FutureTask<?>> mCalls = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    public <V> V execute(String key, Callable<V> callable) throws Exception {
+        final FutureTask<V> task = new FutureTask<>(callable);
+        FutureTask<V> inFlight = (FutureTask<V>) mCalls.putIfAbsent(key, task);
+        if (inFlight == null) {
+            // This caller leads, later ones join until the call is done
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                mCalls.remove(key, task);
+            }
+        }
+        try {
+            return inFlight.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.afollestad.cabinet.plugins;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a group of subtasks on the plugin's executor and treats them as a unit. If any subtask
+ * fails, or the thread waiting in {@link #join()} is interrupted, the remaining subtasks are
+ * cancelled (interrupted). Closing the scope cancels anything still running, so subtasks never
+ * outlive the operation that forked them.
+ * <p/>
+ * <pre>
+ * TaskScope scope = openTaskScope();
+ * try {
+ *     for (PluginFile child : children)
+ *         scope.fork(new Callable&lt;PluginFile&gt;() { ... });
+ *     scope.join();
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class TaskScope implements Closeable {
+
+    private final ExecutorService mExecutor;
+    private final List<Future<?>> mTasks = new ArrayList<>();
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    private boolean mClosed;
+
+    TaskScope(ExecutorService executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts a subtask. The returned Future can be read once {@link #join()} returns.
+     */
+    public synchronized <T> Future<T> fork(final Callable<T> task) {
+        if (mClosed)
+            throw new IllegalStateException("This TaskScope is closed.");
+        final FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void setException(Throwable t) {
+                super.setException(t);
+                // The first failure cancels the siblings
+                if (mFailure.compareAndSet(null, t))
+                    cancelAll();
+            }
+        };
+        mTasks.add(future);
+        mExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Waits for every subtask to finish. Throws the first failure, after cancelling the rest.
+     */
+    public void join() throws Exception {
+        final List<Future<?>> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<>(mTasks);
+        }
+        try {
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (CancellationException | ExecutionException ignored) {
+                    // Reported below
+                }
+                if (mFailure.get() != null)
+                    break;
+            }
+        } catch (InterruptedException e) {
+            cancelAll();
+            throw e;
+        }
+        final Throwable failure = mFailure.get();
+        if (failure instanceof Exception)
+            throw (Exception) failure;
+        else if (failure instanceof Error)
+            throw (Error) failure;
+    }
+
+    public synchronized void cancelAll() {
+        for (Future<?> task : mTasks)
+            task.cancel(true);
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        cancelAll();
+    }
+}
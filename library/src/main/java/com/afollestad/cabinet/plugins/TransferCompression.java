@@ -0,0 +1,208 @@
+package com.afollestad.cabinet.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Optional transfer compression, for backends where the plugin controls both ends (e.g. its own
+ * server, or an SFTP server it can run a helper on). Compressed streams start with a small header
+ * naming the codec, so the receiving end can tell how to decode them. Once compression has been
+ * negotiated (see {@link PluginCapabilities#TRANSFER_COMPRESSION}), every stream is framed, even
+ * stored ones, and data without a valid header is rejected; it's never guessed at, since a file
+ * can start with anything, the header's magic included.
+ * <p/>
+ * The codec is picked per file: known compressed formats are stored, and otherwise the entropy of
+ * the first few KB decides between stored, fast deflate and default deflate.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class TransferCompression {
+
+    private final static byte[] MAGIC = {'C', 'B', 'Z'};
+    private final static int HEADER_LENGTH = MAGIC.length + 1;
+
+    final static int CODEC_STORED = 0;
+    final static int CODEC_DEFLATE_FAST = 1;
+    final static int CODEC_DEFLATE = 2;
+
+    private final static int SAMPLE_SIZE = 4096;
+    /**
+     * Bits per byte. Above this, data is either already compressed or encrypted.
+     */
+    private final static double INCOMPRESSIBLE_ENTROPY = 7.2;
+    /**
+     * Bits per byte. Below this, data is usually text and worth compressing harder.
+     */
+    private final static double TEXT_ENTROPY = 5.0;
+
+    private final static Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "apk", "jpg", "jpeg", "png", "gif",
+            "webp", "mp3", "m4a", "aac", "ogg", "opus", "flac", "mp4", "m4v", "mkv", "webm", "avi",
+            "mov", "3gp", "pdf", "docx", "xlsx", "pptx", "odt", "epub"));
+
+    private TransferCompression() {
+    }
+
+    /**
+     * Returns a stream that reads in, compressed with a codec suited to it, preceded by the header.
+     */
+    public static InputStream compress(InputStream in, String name) throws IOException {
+        final PushbackInputStream pushback = new PushbackInputStream(in, SAMPLE_SIZE);
+        final int codec;
+        if (isCompressedType(name)) {
+            codec = CODEC_STORED;
+        } else {
+            final byte[] sample = new byte[SAMPLE_SIZE];
+            int length = 0;
+            int read;
+            while (length < sample.length && (read = pushback.read(sample, length, sample.length - length)) != -1)
+                length += read;
+            pushback.unread(sample, 0, length);
+            codec = chooseCodec(sample, length);
+        }
+
+        final byte[] header = Arrays.copyOf(MAGIC, HEADER_LENGTH);
+        header[MAGIC.length] = (byte) codec;
+        final InputStream body;
+        if (codec == CODEC_STORED) {
+            body = pushback;
+        } else {
+            final Deflater deflater = new Deflater(codec == CODEC_DEFLATE_FAST ?
+                    Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+            body = new DeflaterInputStream(pushback, deflater) {
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    // A Deflater passed in isn't released by the stream
+                    deflater.end();
+                }
+            };
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(header), body);
+    }
+
+    /**
+     * Returns a stream which decodes data written by a stream returned from
+     * {@link #compress(InputStream, String)} into out. Writing anything else fails.
+     */
+    public static OutputStream decompress(OutputStream out) {
+        return new DecodingOutputStream(out);
+    }
+
+    static boolean isCompressedType(String name) {
+        if (name == null) return false;
+        final int dot = name.lastIndexOf('.');
+        return dot != -1 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+
+    static int chooseCodec(byte[] sample, int length) {
+        if (length == 0)
+            return CODEC_STORED;
+        final int[] counts = new int[256];
+        for (int i = 0; i < length; i++)
+            counts[sample[i] & 0xFF]++;
+        double entropy = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            final double p = (double) count / length;
+            entropy -= p * (Math.log(p) / Math.log(2));
+        }
+        if (entropy >= INCOMPRESSIBLE_ENTROPY)
+            return CODEC_STORED;
+        return entropy <= TEXT_ENTROPY ? CODEC_DEFLATE : CODEC_DEFLATE_FAST;
+    }
+
+    /**
+     * Buffers the header, then either inflates or passes through the rest. A missing or unknown
+     * header, or deflated data that ends early, fails the stream.
+     */
+    private static class DecodingOutputStream extends FilterOutputStream {
+
+        private final byte[] mHeader = new byte[HEADER_LENGTH];
+        private int mHeaderLength;
+        private OutputStream mTarget;
+        private Inflater mInflater;
+
+        DecodingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mTarget == null) {
+                final int needed = Math.min(HEADER_LENGTH - mHeaderLength, count);
+                System.arraycopy(buffer, offset, mHeader, mHeaderLength, needed);
+                mHeaderLength += needed;
+                offset += needed;
+                count -= needed;
+                if (mHeaderLength < HEADER_LENGTH)
+                    return;
+                selectTarget();
+            }
+            if (count > 0)
+                mTarget.write(buffer, offset, count);
+        }
+
+        private void selectTarget() throws IOException {
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (mHeader[i] != MAGIC[i])
+                    throw new IOException("The data doesn't start with a transfer compression header.");
+            }
+            switch (mHeader[MAGIC.length]) {
+                case CODEC_STORED:
+                    mTarget = out;
+                    break;
+                case CODEC_DEFLATE_FAST:
+                case CODEC_DEFLATE:
+                    mInflater = new Inflater();
+                    mTarget = new InflaterOutputStream(out, mInflater);
+                    break;
+                default:
+                    throw new IOException("Unknown transfer compression codec: " + mHeader[MAGIC.length]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mTarget != null)
+                mTarget.flush();
+            else
+                out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (mTarget == null) {
+                    out.close();
+                    throw new EOFException("The data ended within the transfer compression header.");
+                }
+                mTarget.close();
+                if (mInflater != null && !mInflater.finished())
+                    throw new EOFException("The compressed data ended early.");
+            } finally {
+                if (mInflater != null)
+                    mInflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.afollestad.cabinet.plugins;
+
+import android.net.Uri;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent queue of uploads. Jobs are journaled to disk before they run, so uploads that are
+ * in flight or waiting to be retried when the process dies are replayed the next time the service
+ * is created.
+ * <p/>
+ * Failed uploads are retried with exponential backoff and jitter if their error is retryable (see
+ * {@link RetryPolicy}), and wait while the account's circuit is open (see {@link CircuitBreaker}).
+ * Uploads to the same remote file of an account run one at a time, and a newer upload to a remote
+ * file replaces one that hasn't started yet. How many uploads run at once is decided by the
+ * {@link TransferScheduler}, up to {@link TransferScheduler#MAX_BACKGROUND_CONCURRENCY}.
+ * <p/>
+ * Jobs that can't run yet (the service isn't connected to their account, or its circuit is open)
+ * are parked until {@link #resume()} is called, rather than polling.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class TransferQueue {
+
+    private final static int PARALLELISM = TransferScheduler.MAX_BACKGROUND_CONCURRENCY;
+    private final static int MAX_ATTEMPTS = 8;
+    private final static long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(2);
+    private final static long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+    private final PluginService mService;
+    private final AtomicFile mJournal;
+    private final ScheduledThreadPoolExecutor mExecutor;
+    // Unclassified errors are retried, as every error was before they were classified
+    private final RetryPolicy mRetries = new RetryPolicy(MAX_ATTEMPTS, BASE_BACKOFF, MAX_BACKOFF, true);
+    private final Map<String, Job> mJobs = new LinkedHashMap<>();
+    private final Set<String> mRunning = new HashSet<>();
+    private final List<Job> mParked = new ArrayList<>();
+    private ScheduledFuture<?> mWakeUp;
+    private long mWakeUpAt;
+    private long mNextId;
+    private boolean mLoaded;
+
+    private static void log(String message) {
+        Log.d("TransferQueue", message);
+    }
+
+    public TransferQueue(PluginService service, File journal) {
+        mService = service;
+        mJournal = new AtomicFile(journal);
+        mExecutor = new ScheduledThreadPoolExecutor(PARALLELISM);
+    }
+
+    /**
+     * Loads the journal and schedules every job in it. Called once the service has started, off the
+     * main thread; anything that needs the jobs before then loads them itself.
+     */
+    public synchronized void replay() {
+        load();
+    }
+
+    private void load() {
+        if (mLoaded) return;
+        mLoaded = true;
+        final List<Job> jobs = new ArrayList<>();
+        try {
+            final JSONArray array = new JSONArray(new String(mJournal.readFully(), "UTF-8"));
+            for (int i = 0; i < array.length(); i++) {
+                final Job job = new Job(array.optJSONObject(i));
+                mJobs.put(job.key(), job);
+                mNextId = Math.max(mNextId, job.id + 1);
+                jobs.add(job);
+            }
+        } catch (FileNotFoundException ignored) {
+            // Nothing was queued
+        } catch (Exception e) {
+            Log.e("TransferQueue", "Failed to read the transfer journal, discarding it.", e);
+            mJournal.delete();
+        }
+        log("Replaying " + jobs.size() + " queued upload(s)");
+        for (Job job : jobs)
+            schedule(job, Math.max(0, job.nextAttempt - System.currentTimeMillis()));
+    }
+
+    /**
+     * @param guarded Whether the upload goes through the checks for automatic uploads, see
+     *                {@link PluginService#getConflictPolicy()}.
+     */
+    public void enqueue(Uri local, PluginFile remote, boolean guarded) {
+        final Job job;
+        synchronized (this) {
+            load();
+            job = new Job(mNextId++, local.toString(), remote, mService.getCurrentAccount(), guarded);
+            // An upload to the same remote file that hasn't started yet is superseded by this one
+            mJobs.put(job.key(), job);
+            persist();
+        }
+        log("Queued upload of " + local + " to " + remote);
+        schedule(job, 0);
+    }
+
+    /**
+     * Runs the jobs that were parked. Called when the service connects or switches accounts.
+     */
+    public void resume() {
+        final List<Job> jobs;
+        synchronized (this) {
+            if (mParked.isEmpty()) return;
+            jobs = new ArrayList<>(mParked);
+            mParked.clear();
+        }
+        log("Resuming " + jobs.size() + " parked upload(s)");
+        for (Job job : jobs)
+            schedule(job, 0);
+    }
+
+    /**
+     * Returns the local paths of files that still have uploads queued, so they aren't wiped
+     * along with the rest of the cache.
+     */
+    public synchronized Set<String> getPendingPaths() {
+        load();
+        final Set<String> paths = new HashSet<>();
+        for (Job job : mJobs.values()) {
+            final Uri uri = Uri.parse(job.local);
+            if (uri.getScheme() == null || uri.getScheme().equalsIgnoreCase("file"))
+                paths.add(new File(uri.getPath()).getAbsolutePath());
+        }
+        return paths;
+    }
+
+    /**
+     * Stops running jobs. Pending jobs stay in the journal and are replayed on the next start.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void schedule(final Job job, long delay) {
+        if (mExecutor.isShutdown()) return;
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(job);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void execute(final Job job) {
+        final String key = job.key();
+        synchronized (this) {
+            if (mJobs.get(key) != job) {
+                // Superseded or already finished
+                return;
+            }
+            if (!mRunning.add(key)) {
+                // An earlier upload of the same file is still running, wait for it
+                schedule(job, BASE_BACKOFF);
+                return;
+            }
+        }
+
+        boolean finished = false;
+        try {
+            if (!mService.isConnected() ||
+                    (job.account != null && !job.account.equals(mService.getCurrentAccount()))) {
+                // Doesn't count as an attempt; wait for the service to connect to the right account
+                park(job, 0);
+                return;
+            }
+            final CircuitBreaker circuits = mService.getCircuitBreaker();
+            final PluginError unavailable = circuits.check(job.account);
+            if (unavailable != null) {
+                // Neither does waiting out a backend that's failing for everything
+                park(job, unavailable.getRetryAfter());
+                return;
+            }
+            final TransferScheduler scheduler = mService.getTransferScheduler();
+            scheduler.beginBackground();
+            final long start = System.nanoTime();
+            PluginFile result = null;
+            mService.getNotifications().beginUpload();
+            try {
+                // Long queues outlive access tokens, an expired one is refreshed and the upload made again
+                result = mService.callWithCredentials(new Callable<PluginFile>() {
+                    @Override
+                    public PluginFile call() throws Exception {
+                        if (job.guarded)
+                            return mService.performGuardedUpload(job.local, job.remote);
+                        return mService.upload(Uri.parse(job.local), job.remote);
+                    }
+                });
+                // Listings prefetched since the job was queued don't have the uploaded file yet
+                mService.getPrefetcher().invalidate();
+                if (job.guarded)
+                    mService.onGuardedUploadFinished(job.local, result);
+            } finally {
+                mService.getNotifications().endUpload();
+                scheduler.endBackground(result != null ? Math.max(0, result.getLength()) : 0,
+                        System.nanoTime() - start);
+            }
+            circuits.onSuccess(job.account);
+            log("Finished upload of " + job.local);
+            finished = true;
+        } catch (InterruptedException e) {
+            // The queue is shutting down, the job stays in the journal
+            log("Interrupted upload of " + job.local);
+        } catch (UploadGuard.ConflictException e) {
+            // Retrying wouldn't change anything
+            finished = true;
+            mService.showError(e.getMessage());
+        } catch (Exception e) {
+            if (mExecutor.isShutdown() || isInterruption(e)) {
+                // Also the queue shutting down, as seen from inside the plugin's blocking I/O
+                log("Interrupted upload of " + job.local);
+                return;
+            }
+            Log.w("TransferQueue", "Upload of " + job.local + " failed (attempt " + (job.attempts + 1) + ")", e);
+            final PluginError error = PluginError.from(e);
+            mService.getCircuitBreaker().onFailure(job.account, error);
+            // Expired credentials aren't the upload's fault, give the user a chance to sign in again
+            final boolean retry = error.needsAuthRefresh() ? job.attempts + 1 < MAX_ATTEMPTS :
+                    mRetries.shouldRetry(error, job.attempts + 1);
+            if (retry) {
+                retry(job, error);
+            } else {
+                finished = true;
+                mService.showError(mService.getString(R.string.failed_upload_error,
+                        job.remote.getName(), e.getLocalizedMessage()));
+            }
+        } finally {
+            synchronized (this) {
+                mRunning.remove(key);
+                if (finished && mJobs.get(key) == job) {
+                    mJobs.remove(key);
+                    persist();
+                }
+            }
+        }
+    }
+
+    private static boolean isInterruption(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof InterruptedException || e instanceof ClosedByInterruptException ||
+                    (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets a job aside until {@link #resume()}, or for at most the given delay if it's above zero.
+     * The journal isn't touched, nothing about the job changed.
+     */
+    private synchronized void park(Job job, long wakeUpDelay) {
+        mParked.add(job);
+        if (wakeUpDelay <= 0 || mExecutor.isShutdown()) return;
+        // One wake-up for every parked job, at the earliest time any of them asked for
+        final long wakeUpAt = System.currentTimeMillis() + wakeUpDelay;
+        if (mWakeUp != null && !mWakeUp.isDone() && mWakeUpAt <= wakeUpAt) return;
+        if (mWakeUp != null)
+            mWakeUp.cancel(false);
+        mWakeUpAt = wakeUpAt;
+        mWakeUp = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                resume();
+            }
+        }, wakeUpDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(Job job, PluginError error) {
+        final long delay;
+        synchronized (this) {
+            job.attempts++;
+            delay = mRetries.getDelay(error, job.attempts);
+            job.nextAttempt = System.currentTimeMillis() + delay;
+            persist();
+        }
+        schedule(job, delay);
+    }
+
+    private void persist() {
+        FileOutputStream os = null;
+        try {
+            final JSONArray array = new JSONArray();
+            for (Job job : mJobs.values())
+                array.put(job.toJson());
+            os = mJournal.startWrite();
+            os.write(array.toString().getBytes("UTF-8"));
+            mJournal.finishWrite(os);
+        } catch (Exception e) {
+            Log.e("TransferQueue", "Failed to write the transfer journal.", e);
+            if (os != null)
+                mJournal.failWrite(os);
+        }
+    }
+
+    private static class Job {
+
+        final long id;
+        final String local;
+        final PluginFile remote;
+        final String account;
+        final boolean guarded;
+        int attempts;
+        long nextAttempt;
+
+        Job(long id, String local, PluginFile remote, String account, boolean guarded) {
+            this.id = id;
+            this.local = local;
+            this.remote = remote;
+            this.account = account;
+            this.guarded = guarded;
+        }
+
+        Job(JSONObject json) {
+            id = json.optLong("id");
+            local = json.optString("local");
+            remote = new PluginFile(json.optJSONObject("remote"));
+            account = json.has("account") ? json.optString("account") : null;
+            guarded = json.optBoolean("guarded");
+            attempts = json.optInt("attempts");
+            nextAttempt = json.optLong("next_attempt");
+        }
+
+        String key() {
+            return account + "|" + remote.getPath();
+        }
+
+        JSONObject toJson() throws Exception {
+            final JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("local", local);
+            json.put("remote", remote.toJson());
+            if (account != null)
+                json.put("account", account);
+            json.put("guarded", guarded);
+            json.put("attempts", attempts);
+            json.put("next_attempt", nextAttempt);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.afollestad.cabinet.plugins;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps bulk transfers from starving interactive calls. Calls made by the main app are foreground;
+ * queued and automatic uploads run in the background class, which:
+ * <ul>
+ * <li>is rate limited with a token bucket, depending on the network (see
+ * {@link PluginService#getBackgroundBytesPerSecond(boolean)}),</li>
+ * <li>is paused while there's no network or the device is roaming,</li>
+ * <li>has its concurrency adapted: halved when foreground latency degrades while background
+ * transfers run, and increased by one after each transfer that completes while foreground
+ * latency is healthy.</li>
+ * </ul>
+ * Foreground latency is tracked per operation, since a listing and an upload of the same backend
+ * take very different times; each is compared against the baseline of its own kind.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class TransferScheduler {
+
+    public final static int MAX_BACKGROUND_CONCURRENCY = 4;
+    private final static long PAUSED_POLL = TimeUnit.SECONDS.toMillis(5);
+    /**
+     * Foreground calls slower than this multiple of their best observed latency count as degraded.
+     */
+    private final static int DEGRADED_FACTOR = 2;
+    /**
+     * How many calls it takes a baseline to move most of the way up to slower latencies, so one
+     * unusually fast call (e.g. served from a cache) doesn't set it for the life of the service.
+     */
+    private final static int BASELINE_DECAY = 64;
+
+    private final Context mContext;
+    private final PluginService mService;
+    private final ThreadLocal<Boolean> mBackground = new ThreadLocal<>();
+
+    private boolean mPaused;
+    private long mBytesPerSecond;
+    private int mPolicyConcurrency = MAX_BACKGROUND_CONCURRENCY;
+    private int mConcurrency = 1;
+    private int mRunning;
+    /**
+     * Background transfers running or waiting to, written while holding the lock.
+     */
+    private volatile int mActive;
+
+    private double mTokens;
+    private long mRefilled = System.nanoTime();
+
+    private final Map<String, Latency> mForeground = new HashMap<>();
+    private boolean mDegraded;
+
+    public TransferScheduler(PluginService service) {
+        mService = service;
+        mContext = service.getApplicationContext();
+        refreshNetworkPolicy();
+    }
+
+    /**
+     * Re-reads the active network and applies the matching policy. Called when connectivity changes.
+     */
+    public void refreshNetworkPolicy() {
+        final ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+        final boolean metered = cm == null || ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+        // Implemented by the plugin, so it's not called while holding the lock
+        final long bytesPerSecond = mService.getBackgroundBytesPerSecond(metered);
+        synchronized (this) {
+            mPaused = info == null || !info.isConnected() || info.isRoaming();
+            mBytesPerSecond = bytesPerSecond;
+            mPolicyConcurrency = metered ? 1 : MAX_BACKGROUND_CONCURRENCY;
+            mConcurrency = Math.min(mConcurrency, mPolicyConcurrency);
+            Log.d("TransferScheduler", "Network policy: paused=" + mPaused + ", metered=" + metered +
+                    ", rate=" + mBytesPerSecond + "B/s, concurrency=" + mConcurrency);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until a background transfer may start, then marks the calling thread as a background
+     * transfer so its streams are throttled. Must be followed by {@link #endBackground(long, long)}.
+     */
+    public void beginBackground() throws InterruptedException {
+        synchronized (this) {
+            mActive++;
+        }
+        boolean started = false;
+        try {
+            while (true) {
+                final boolean paused;
+                synchronized (this) {
+                    if (!mPaused && mRunning < mConcurrency) {
+                        mRunning++;
+                        started = true;
+                        break;
+                    }
+                    // Policy changes call notifyAll(), the timeout covers missed connectivity broadcasts
+                    wait(mPaused ? PAUSED_POLL : 0);
+                    paused = mPaused;
+                }
+                // Outside the lock, it's a system service call that other transfers shouldn't wait on
+                if (paused)
+                    refreshNetworkPolicy();
+            }
+        } finally {
+            if (!started) {
+                synchronized (this) {
+                    mActive--;
+                }
+            }
+        }
+        mBackground.set(Boolean.TRUE);
+    }
+
+    public void endBackground(long bytes, long durationNanos) {
+        mBackground.remove();
+        synchronized (this) {
+            mRunning--;
+            mActive--;
+            if (mDegraded) {
+                mConcurrency = Math.max(1, mConcurrency / 2);
+            } else if (bytes > 0 && mConcurrency < mPolicyConcurrency) {
+                mConcurrency++;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Whether foreground latency is being tracked, which is while background transfers run or wait
+     * to. Calls made while it isn't aren't timed, unless metrics are on.
+     */
+    public boolean isSampling() {
+        return mActive > 0;
+    }
+
+    /**
+     * Records the latency of a foreground call, used to detect background transfers hurting it.
+     * Whether foreground latency is degraded is decided by the latest call.
+     */
+    public synchronized void onForegroundCall(String operation, long durationNanos) {
+        Latency latency = mForeground.get(operation);
+        if (latency == null) {
+            latency = new Latency();
+            mForeground.put(operation, latency);
+        }
+        latency.add(durationNanos);
+        mDegraded = latency.isDegraded();
+        if (mRunning > 0 && mDegraded && mConcurrency > 1) {
+            mConcurrency = Math.max(1, mConcurrency / 2);
+        }
+    }
+
+    /**
+     * The latency of one kind of foreground call.
+     */
+    private static class Latency {
+
+        long baseline = Long.MAX_VALUE;
+        long average;
+
+        void add(long durationNanos) {
+            // The baseline follows faster calls at once, and slower ones slowly
+            if (baseline == Long.MAX_VALUE || durationNanos < baseline)
+                baseline = durationNanos;
+            else
+                baseline += (durationNanos - baseline) / BASELINE_DECAY;
+            // Exponentially weighted, recent calls count for a quarter
+            average = average == 0 ? durationNanos : (average * 3 + durationNanos) / 4;
+        }
+
+        boolean isDegraded() {
+            return average > baseline * DEGRADED_FACTOR;
+        }
+    }
+
+    public boolean isBackgroundThread() {
+        return mBackground.get() != null;
+    }
+
+    /**
+     * Blocks until the token bucket has room for the given number of bytes. The bucket holds at
+     * most one second worth of tokens.
+     */
+    void throttle(int bytes) throws InterruptedIOException {
+        synchronized (this) {
+            while (true) {
+                final long rate = mBytesPerSecond;
+                if (rate <= 0) return;
+                final long now = System.nanoTime();
+                mTokens = Math.min(rate, mTokens + (now - mRefilled) * rate / 1e9);
+                mRefilled = now;
+                // Large writes are let through once the bucket is full, rather than never
+                if (mTokens >= Math.min(bytes, rate)) {
+                    mTokens -= bytes;
+                    return;
+                }
+                final long waitMillis = (long) Math.ceil((Math.min(bytes, rate) - mTokens) * 1000d / rate);
+                try {
+                    wait(Math.max(1, waitMillis));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    public InputStream wrap(InputStream is) {
+        return isBackgroundThread() ? new ThrottledInputStream(is, this) : is;
+    }
+
+    public OutputStream wrap(OutputStream os) {
+        return isBackgroundThread() ? new ThrottledOutputStream(os, this) : os;
+    }
+
+    private static class ThrottledInputStream extends FilterInputStream {
+
+        private final TransferScheduler mScheduler;
+
+        ThrottledInputStream(InputStream in, TransferScheduler scheduler) {
+            super(in);
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1)
+                mScheduler.throttle(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = super.read(buffer, offset, count);
+            if (read > 0)
+                mScheduler.throttle(read);
+            return read;
+        }
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+
+        private final TransferScheduler mScheduler;
+
+        ThrottledOutputStream(OutputStream out, TransferScheduler scheduler) {
+            super(out);
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mScheduler.throttle(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            mScheduler.throttle(count);
+            out.write(buffer, offset, count);
+        }
+    }
+}
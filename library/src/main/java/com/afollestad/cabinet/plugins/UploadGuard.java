@@ -0,0 +1,87 @@
+package com.afollestad.cabinet.plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checks that run before an automatic upload: whether the local file actually changed since it
+ * was last synced (editors often rewrite files that weren't changed on save), and whether the
+ * remote file changed since the local copy was taken from it.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+final class UploadGuard {
+
+    private UploadGuard() {
+    }
+
+    /**
+     * Returns the SHA-1 of a file's contents as hex, or null if it can't be read.
+     */
+    public static String hash(File file) {
+        InputStream is = null;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            is = new FileInputStream(file);
+            final byte[] buffer = new byte[BufferPool.BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+            final StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest())
+                hex.append(String.format("%02x", b & 0xFF));
+            return hex.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether current, a fresh look at a remote file, differs from the snapshot base that a local
+     * copy was taken from.
+     */
+    public static boolean changedSince(PluginFile base, PluginFile current) {
+        return current.getModified() != base.getModified() || current.getLength() != base.getLength();
+    }
+
+    /**
+     * Returns a file next to remote for keeping a conflicting local copy, named with
+     * R.string.conflict_copy_name.
+     */
+    public static PluginFile conflictCopy(PluginService service, PluginFile remote) {
+        final String name = remote.getName();
+        final int dot = name.lastIndexOf('.');
+        final String stem = dot > 0 ? name.substring(0, dot) : name;
+        final String extension = dot > 0 ? name.substring(dot) : "";
+        final PluginFile parent = remote.getParent();
+        final String parentPath = parent != null ? parent.getPath() : "/";
+        final String copyName = service.getString(R.string.conflict_copy_name, stem, extension);
+        return new PluginFile.Builder(parent, remote.getPackage())
+                .path(parentPath.endsWith("/") ? parentPath + copyName : parentPath + "/" + copyName)
+                .build();
+    }
+
+    /**
+     * Thrown when an upload is abandoned because the remote file changed, and the plugin's conflict
+     * policy is {@link PluginService#CONFLICT_ABORT}. Not retried.
+     */
+    public static class ConflictException extends Exception {
+
+        private static final long serialVersionUID = 2568771528989642949L;
+
+        public ConflictException(String message) {
+            super(message);
+        }
+    }
+}
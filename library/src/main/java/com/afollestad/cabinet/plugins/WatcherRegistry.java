@@ -0,0 +1,208 @@
+package com.afollestad.cabinet.plugins;
+
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The {@link ChangeWatcher}s of a PluginService, keyed by local path. Registration and expiry are
+ * lock-free; only writes of the journal (which lets watchers survive the process being killed)
+ * are serialized. A new watcher's file is hashed on the service's executor rather than the calling
+ * Binder thread, since it can be large.
+ * <p/>
+ * Once {@link #shutdown()} is called every watcher is stopped, and later registrations are
+ * refused, including ones that were racing with the shutdown.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class WatcherRegistry {
+
+    private final PluginService mService;
+    private final AtomicFile mJournal;
+    private final ExecutorService mExecutor;
+    private final ConcurrentMap<String, ChangeWatcher> mWatchers = new ConcurrentHashMap<>();
+    private volatile boolean mShutdown;
+    private volatile boolean mRestored;
+
+    private static void log(String message) {
+        Log.d("WatcherRegistry", message);
+    }
+
+    public WatcherRegistry(PluginService service, File journal, ExecutorService executor) {
+        mService = service;
+        mJournal = new AtomicFile(journal);
+        mExecutor = executor;
+    }
+
+    /**
+     * Starts watching a local file, unless it's already watched. Returns true if a new watcher
+     * was registered.
+     */
+    public boolean watch(File local, PluginFile remote) {
+        if (mShutdown) return false;
+        restore();
+        removeExpired();
+        // Taken before watching starts, so a write racing with it isn't mistaken for synced contents
+        final long length = local.length();
+        final long modified = local.lastModified();
+        final ChangeWatcher watcher = register(local, remote, null);
+        if (watcher == null)
+            return false;
+        hashInBackground(watcher, local, length, modified);
+        persist();
+        return true;
+    }
+
+    /**
+     * Registers a watcher without writing the journal. Returns null if the file is already watched.
+     *
+     * @param syncedHash The hash of the file when it was last in sync, null if it isn't known; then
+     *                   any change is uploaded.
+     */
+    private ChangeWatcher register(File local, PluginFile remote, String syncedHash) {
+        final String path = local.getAbsolutePath();
+        if (mWatchers.containsKey(path)) return null;
+
+        final ChangeWatcher watcher = new ChangeWatcher(path, remote, mService);
+        if (mWatchers.putIfAbsent(path, watcher) != null)
+            return null;
+        watcher.setSyncedHash(syncedHash);
+        watcher.startWatching();
+        if (mShutdown) {
+            // Raced with shutdown(), which may have missed this watcher
+            mWatchers.remove(path, watcher);
+            watcher.stopWatching();
+            return null;
+        }
+        return watcher;
+    }
+
+    /**
+     * Records the hash of a newly watched file, which was just downloaded and so is in sync with
+     * the remote file. If the file is written to before it's been hashed, it's left without a hash
+     * and the change is uploaded.
+     */
+    private void hashInBackground(final ChangeWatcher watcher, final File local, final long length,
+                                  final long modified) {
+        try {
+            watcher.setHashing(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    final String hash = UploadGuard.hash(local);
+                    if (local.length() != length || local.lastModified() != modified)
+                        return;
+                    watcher.setSyncedHash(hash);
+                    if (mWatchers.get(watcher.getPath()) == watcher)
+                        persist();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            // The service is being destroyed
+            log("Unable to hash " + local + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Returns the remote file that the watcher of a local file currently syncs to, or fallback if
+     * the file isn't watched.
+     */
+    public PluginFile getRemote(String localPath, PluginFile fallback) {
+        final ChangeWatcher watcher = mWatchers.get(localPath);
+        return watcher != null ? watcher.getRemote() : fallback;
+    }
+
+    public void onUploaded(String localPath, PluginFile result) {
+        final ChangeWatcher watcher = mWatchers.get(localPath);
+        if (watcher == null) return;
+        watcher.onUploaded(result);
+        persist();
+    }
+
+    public void removeExpired() {
+        boolean changed = false;
+        for (ChangeWatcher w : mWatchers.values()) {
+            if (w.isExpired() && mWatchers.remove(w.getPath(), w)) {
+                w.stopWatching();
+                changed = true;
+            }
+        }
+        if (changed)
+            persist();
+    }
+
+    /**
+     * Re-creates the watchers of a process that was killed, if their files are still around.
+     * Only does anything the first time it's called.
+     */
+    public void restore() {
+        if (mRestored) return;
+        synchronized (mJournal) {
+            if (mRestored) return;
+            mRestored = true;
+            try {
+                final JSONArray array = new JSONArray(new String(mJournal.readFully(), "UTF-8"));
+                for (int i = 0; i < array.length() && !mShutdown; i++) {
+                    final JSONObject json = array.optJSONObject(i);
+                    final File local = new File(json.optString("path"));
+                    if (local.exists())
+                        register(local, new PluginFile(json.optJSONObject("remote")), json.optString("hash", null));
+                }
+            } catch (FileNotFoundException ignored) {
+                return;
+            } catch (Exception e) {
+                log("Failed to restore watchers: " + e.getLocalizedMessage());
+            }
+            // Once for all of them, which also drops the watchers whose files are gone. Ones without a
+            // hash aren't hashed now, the file may have changed while the process was dead
+            persist();
+        }
+    }
+
+    private void persist() {
+        synchronized (mJournal) {
+            // Until the journal is restored, writing it would drop the watchers in it
+            if (!mRestored || mShutdown) return;
+            FileOutputStream os = null;
+            try {
+                final JSONArray array = new JSONArray();
+                for (ChangeWatcher w : mWatchers.values()) {
+                    array.put(new JSONObject()
+                            .put("path", w.getPath())
+                            .put("remote", w.getRemote().toJson())
+                            .put("hash", w.getSyncedHash()));
+                }
+                os = mJournal.startWrite();
+                os.write(array.toString().getBytes("UTF-8"));
+                mJournal.finishWrite(os);
+            } catch (Exception e) {
+                log("Failed to persist watchers: " + e.getLocalizedMessage());
+                if (os != null)
+                    mJournal.failWrite(os);
+            }
+        }
+    }
+
+    /**
+     * Stops every watcher and deletes the journal; a clean exit doesn't restore watchers.
+     */
+    public void shutdown() {
+        mShutdown = true;
+        for (ChangeWatcher w : mWatchers.values()) {
+            if (mWatchers.remove(w.getPath(), w))
+                w.stopWatching();
+        }
+        synchronized (mJournal) {
+            mJournal.delete();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.afollestad.sample;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.net.Uri;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.afollestad.cabinet.plugins.IPluginService;
+import com.afollestad.cabinet.plugins.PluginErrorResult;
+import com.afollestad.cabinet.plugins.PluginFile;
+import com.afollestad.cabinet.plugins.PluginFileResult;
+import com.afollestad.cabinet.plugins.PluginLsResult;
+import com.afollestad.cabinet.plugins.PluginMetrics;
+import com.afollestad.cabinet.plugins.PluginUriResult;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds to {@link SyntheticPluginService} and drives its IPluginService binder from many threads
+ * at once, like a busy main app would: each thread browses the tree (descending into random
+ * folders and back to the root), pages through listings, checks paths, downloads and opens files,
+ * and creates and removes files. Afterwards, it reports the throughput and latency percentiles of
+ * each call as seen by the caller, followed by the service's own metrics. Calls count as errors if
+ * they fail, throw, or (for exists checks, whose Binder calls report failures as false) disagree
+ * with an unmodified copy of the synthetic tree.
+ * <p/>
+ * With {@link #MIX_WATCHERS}, the threads stress the service's file watchers instead: they open
+ * files with watch=true, expire watchers by deleting their files, and rewrite watched files, both
+ * unchanged and changed, all on overlapping files.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class LoadGenerator {
+
+    public final static int MIX_BROWSE = 0;
+    public final static int MIX_WATCHERS = 1;
+
+    public interface Callback {
+        void onFinished(String report);
+    }
+
+    private final Context mContext;
+    private final int mThreads;
+    private final long mDurationMillis;
+    private final int mMix;
+    private SyntheticFileSystem mExpected;
+
+    public LoadGenerator(Context context, int threads, long durationMillis) {
+        this(context, threads, durationMillis, MIX_BROWSE);
+    }
+
+    public LoadGenerator(Context context, int threads, long durationMillis, int mix) {
+        mContext = context.getApplicationContext();
+        mThreads = threads;
+        mDurationMillis = durationMillis;
+        mMix = mix;
+    }
+
+    /**
+     * Runs the load test in the background. The callback is invoked on a background thread.
+     */
+    public void start(final Callback callback) {
+        final ServiceConnection connection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                final IPluginService service = IPluginService.Stub.asInterface(binder);
+                final ServiceConnection self = this;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String report;
+                        try {
+                            report = runLoad(service);
+                        } catch (Exception e) {
+                            Log.e("LoadGenerator", "Load test failed", e);
+                            report = "Load test failed: " + e.getLocalizedMessage();
+                        }
+                        mContext.unbindService(self);
+                        callback.onFinished(report);
+                    }
+                }, "LoadGenerator").start();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+            }
+        };
+        mContext.bindService(new Intent(mContext, SyntheticPluginService.class), connection, Context.BIND_AUTO_CREATE);
+    }
+
+    private String runLoad(final IPluginService service) throws Exception {
+        if (!service.isConnected()) {
+            final PluginErrorResult result = service.connect();
+            if (result != null && !service.isConnected())
+                throw new Exception(result.getError());
+        }
+
+        // Workers only check generated paths, which their own makeFile() and remove() calls don't touch
+        mExpected = SyntheticPluginService.getConfig().newFileSystem();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mDurationMillis);
+        final List<Worker> workers = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < mThreads; i++) {
+            final Worker worker = new Worker(service, deadline, i);
+            workers.add(worker);
+            threads.add(new Thread(worker, "LoadWorker-" + i));
+        }
+        final long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final Map<String, Samples> merged = new TreeMap<>();
+        for (Worker worker : workers) {
+            for (Map.Entry<String, Samples> entry : worker.samples.entrySet()) {
+                Samples samples = merged.get(entry.getKey());
+                if (samples == null)
+                    merged.put(entry.getKey(), samples = new Samples());
+                samples.addAll(entry.getValue());
+            }
+        }
+
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%d threads for %.1fs\n\n", mThreads, seconds));
+        long total = 0;
+        for (Map.Entry<String, Samples> entry : merged.entrySet()) {
+            final Samples samples = entry.getValue();
+            total += samples.count;
+            report.append(String.format(Locale.US, "%s: %d calls (%.1f/s), %d errors, p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms\n",
+                    entry.getKey(), samples.count, samples.count / seconds, samples.errors,
+                    samples.percentileMillis(50), samples.percentileMillis(90),
+                    samples.percentileMillis(99), samples.percentileMillis(100)));
+        }
+        report.append(String.format(Locale.US, "\nTotal: %d calls (%.1f/s)\n\nService metrics:\n", total, total / seconds));
+        final PluginMetrics metrics = service.getMetrics();
+        if (metrics != null) {
+            for (PluginMetrics.Operation op : metrics.getOperations())
+                report.append(op).append('\n');
+        }
+        Log.i("LoadGenerator", report.toString());
+        return report.toString();
+    }
+
+    private class Worker implements Runnable {
+
+        final IPluginService service;
+        final long deadline;
+        final Random random;
+        final Map<String, Samples> samples = new HashMap<>();
+        final File scratch;
+        final List<File> watched = new ArrayList<>();
+        PluginFile folder;
+        List<PluginFile> listing = new ArrayList<>();
+        String pending;
+        long pendingStart;
+
+        Worker(IPluginService service, long deadline, int index) {
+            this.service = service;
+            this.deadline = deadline;
+            this.random = new Random(index);
+            this.scratch = new File(mContext.getCacheDir(), "load-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                try {
+                    step();
+                } catch (Exception e) {
+                    Log.w("LoadGenerator", "Call failed", e);
+                    // The call that threw never got to record itself
+                    if (pending != null)
+                        record(pending, pendingStart, false);
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            scratch.delete();
+        }
+
+        private void step() throws Exception {
+            if (mMix == MIX_WATCHERS) {
+                stepWatchers();
+                return;
+            }
+            final int roll = random.nextInt(100);
+            if (roll < 40) {
+                browse();
+            } else if (roll < 50) {
+                page();
+            } else if (roll < 60) {
+                final String path = randomPath();
+                final long start = begin("exists");
+                final boolean exists = service.exists(path);
+                record("exists", start, exists == (mExpected.get(path) != null));
+            } else if (roll < 70) {
+                final String[] paths = new String[16];
+                for (int i = 0; i < paths.length; i++)
+                    paths[i] = randomPath();
+                final long start = begin("existsAll");
+                final boolean[] exists = service.existsAll(paths);
+                record("existsAll", start, exists != null && Arrays.equals(exists, expected(paths)));
+            } else if (roll < 80) {
+                final PluginFile file = randomFile();
+                if (file == null) return;
+                final long start = begin("download");
+                final PluginUriResult result = service.download(file, Uri.fromFile(scratch));
+                record("download", start, result.getError() == null);
+            } else if (roll < 90) {
+                final PluginFile file = randomFile();
+                if (file == null) return;
+                final long start = begin("openFile");
+                final PluginUriResult result = service.openFile(file, random.nextBoolean());
+                record("openFile", start, result.getError() == null);
+            } else {
+                long start = begin("makeFile");
+                final PluginFileResult created = service.makeFile("load-" + random.nextInt(1000) + ".txt", folder);
+                record("makeFile", start, created.getError() == null);
+                if (created.getFile() != null) {
+                    start = begin("remove");
+                    record("remove", start, service.remove(created.getFile()) == null);
+                }
+            }
+        }
+
+        private void stepWatchers() throws Exception {
+            final PluginFile file = randomFile();
+            if (file == null || random.nextInt(20) == 0) {
+                browse();
+                return;
+            }
+            final int roll = random.nextInt(100);
+            if (roll < 60 || watched.isEmpty()) {
+                final long start = begin("openFile(watch)");
+                final PluginUriResult result = service.openFile(file, true);
+                record("openFile(watch)", start, result.getError() == null);
+                if (result.getUri() != null)
+                    watched.add(new File(result.getUri().getPath()));
+            } else if (roll < 80) {
+                // Deleting a watched file expires its watcher
+                final File local = watched.remove(random.nextInt(watched.size()));
+                final long start = begin("expire");
+                record("expire", start, local.delete() || !local.exists());
+            } else {
+                // Unchanged rewrites are skipped by the synced hash, changed ones are queued for upload
+                final File local = watched.get(random.nextInt(watched.size()));
+                final long start = begin("rewrite");
+                record("rewrite", start, rewrite(local, random.nextBoolean()));
+            }
+        }
+
+        private boolean rewrite(File local, boolean change) {
+            try {
+                final byte[] contents = new byte[(int) local.length()];
+                final FileInputStream is = new FileInputStream(local);
+                try {
+                    int offset = 0;
+                    int read;
+                    while (offset < contents.length && (read = is.read(contents, offset, contents.length - offset)) != -1)
+                        offset += read;
+                } finally {
+                    is.close();
+                }
+                final FileOutputStream os = new FileOutputStream(local);
+                try {
+                    os.write(contents);
+                    if (change)
+                        os.write(random.nextInt(256));
+                } finally {
+                    os.close();
+                }
+                return true;
+            } catch (IOException e) {
+                // Another thread expired it first
+                return false;
+            }
+        }
+
+        /**
+         * Lists the current folder, then moves into a random subfolder, or back to the root.
+         */
+        private void browse() throws Exception {
+            final long start = begin("listFiles");
+            final PluginLsResult result = service.listFiles(folder);
+            record("listFiles", start, result.getError() == null);
+            if (result.getResults() != null)
+                listing = result.getResults();
+            final List<PluginFile> folders = new ArrayList<>();
+            for (PluginFile file : listing) {
+                if (file.isDir()) folders.add(file);
+            }
+            if (folders.isEmpty() || random.nextInt(5) == 0) {
+                folder = null;
+            } else {
+                folder = folders.get(random.nextInt(folders.size()));
+            }
+        }
+
+        private void page() throws Exception {
+            long start = begin("listFilesPaged");
+            PluginLsResult page = service.listFilesPaged(folder, 25);
+            record("listFilesPaged", start, page.getError() == null);
+            while (page.getError() == null && page.getCursor() != null) {
+                start = begin("nextPage");
+                page = service.nextPage(page.getCursor());
+                record("nextPage", start, page.getError() == null);
+            }
+        }
+
+        private PluginFile randomFile() {
+            final List<PluginFile> files = new ArrayList<>();
+            for (PluginFile file : listing) {
+                if (!file.isDir()) files.add(file);
+            }
+            return files.isEmpty() ? null : files.get(random.nextInt(files.size()));
+        }
+
+        private String randomPath() {
+            final StringBuilder path = new StringBuilder();
+            final int depth = 1 + random.nextInt(4);
+            for (int i = 0; i < depth; i++)
+                path.append("/dir").append(random.nextInt(12));
+            if (random.nextBoolean())
+                path.append("/file").append(random.nextInt(110)).append(".bin");
+            return path.toString();
+        }
+
+        private boolean[] expected(String[] paths) {
+            final boolean[] exists = new boolean[paths.length];
+            for (int i = 0; i < paths.length; i++)
+                exists[i] = mExpected.get(paths[i]) != null;
+            return exists;
+        }
+
+        /**
+         * Starts timing a call. If it throws before it's recorded, it's counted as a failure.
+         */
+        private long begin(String operation) {
+            pending = operation;
+            pendingStart = System.nanoTime();
+            return pendingStart;
+        }
+
+        private void record(String operation, long start, boolean success) {
+            final long duration = System.nanoTime() - start;
+            pending = null;
+            Samples s = samples.get(operation);
+            if (s == null)
+                samples.put(operation, s = new Samples());
+            s.add(duration, success);
+        }
+    }
+
+    private static class Samples {
+
+        long[] durations = new long[1024];
+        int count;
+        int errors;
+
+        void add(long durationNanos, boolean success) {
+            if (count == durations.length)
+                durations = Arrays.copyOf(durations, count * 2);
+            durations[count++] = durationNanos;
+            if (!success) errors++;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.count; i++)
+                add(other.durations[i], true);
+            errors += other.errors;
+        }
+
+        double percentileMillis(double percentile) {
+            if (count == 0) return 0;
+            final long[] sorted = Arrays.copyOf(durations, count);
+            Arrays.sort(sorted);
+            final int index = (int) Math.min(count - 1, Math.ceil(count * percentile / 100d) - 1);
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
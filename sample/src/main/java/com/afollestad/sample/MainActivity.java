@@ -4,6 +4,7 @@ import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.TextView;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -11,7 +12,22 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-        // TODO
+    }
+
+    private void runLoadTest(int mix) {
+        final TextView report = (TextView) findViewById(R.id.report);
+        report.setText(R.string.load_test_running);
+        new LoadGenerator(this, 16, 60 * 1000, mix).start(new LoadGenerator.Callback() {
+            @Override
+            public void onFinished(final String result) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        report.setText(result);
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -31,6 +47,12 @@ public class MainActivity extends AppCompatActivity {
         //noinspection SimplifiableIfStatement
         if (id == R.id.action_settings) {
             return true;
+        } else if (id == R.id.action_load_test) {
+            runLoadTest(LoadGenerator.MIX_BROWSE);
+            return true;
+        } else if (id == R.id.action_watcher_stress_test) {
+            runLoadTest(LoadGenerator.MIX_WATCHERS);
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
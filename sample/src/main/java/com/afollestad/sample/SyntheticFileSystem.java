@@ -0,0 +1,288 @@
+package com.afollestad.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file tree that's generated from its shape rather than stored, so it can have millions of
+ * entries without using memory for them. Every folder above the maximum depth has the same number
+ * of subfolders (dir0, dir1, ...) and files (file0.bin, file1.bin, ...); file sizes, dates and
+ * contents are derived from their paths, so they're the same on every run.
+ * <p/>
+ * Changes (created, uploaded, copied and removed entries) are kept in an in-memory overlay.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+class SyntheticFileSystem {
+
+    private final static long EPOCH = 1420070400000L;
+
+    public static class Entry {
+        public final String path;
+        public final boolean isDir;
+        public final long length;
+        public final long modified;
+        /**
+         * Contents of uploaded files; null for generated ones.
+         */
+        final byte[] data;
+        /**
+         * The path whose generated contents this file has, for copies of generated files.
+         */
+        final String seed;
+
+        Entry(String path, boolean isDir, long length, long modified, byte[] data, String seed) {
+            this.path = path;
+            this.isDir = isDir;
+            this.length = isDir ? -1 : length;
+            this.modified = modified;
+            this.data = data;
+            this.seed = seed;
+        }
+
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+    }
+
+    private final int mDepth;
+    private final int mFolders;
+    private final int mFiles;
+    private final long mMinFileSize;
+    private final long mMaxFileSize;
+
+    private final Map<String, Entry> mCreated = new ConcurrentHashMap<>();
+    private final Set<String> mRemoved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public SyntheticFileSystem(int depth, int folders, int files, long minFileSize, long maxFileSize) {
+        mDepth = depth;
+        mFolders = folders;
+        mFiles = files;
+        mMinFileSize = minFileSize;
+        mMaxFileSize = Math.max(minFileSize, maxFileSize);
+    }
+
+    /**
+     * The number of entries in the generated tree, not counting the root.
+     */
+    public long size() {
+        long total = 0;
+        long folders = 1;
+        for (int level = 0; level < mDepth; level++) {
+            total += folders * (mFolders + mFiles);
+            folders *= mFolders;
+        }
+        return total + folders * mFiles;
+    }
+
+    public Entry get(String path) {
+        path = normalize(path);
+        if (isRemoved(path)) return null;
+        final Entry created = mCreated.get(path);
+        if (created != null) return created;
+        return generate(path);
+    }
+
+    public List<Entry> list(String path) throws FileNotFoundException {
+        path = normalize(path);
+        final Entry parent = get(path);
+        if (parent == null || !parent.isDir)
+            throw new FileNotFoundException(path + " isn't a folder.");
+        final List<Entry> results = new ArrayList<>();
+        final boolean generated = mCreated.get(path) == null;
+        if (generated) {
+            final int depth = depth(path);
+            if (depth < mDepth) {
+                for (int i = 0; i < mFolders; i++)
+                    addIfPresent(results, child(path, "dir" + i));
+            }
+            for (int i = 0; i < mFiles; i++)
+                addIfPresent(results, child(path, "file" + i + ".bin"));
+        }
+        for (Entry entry : mCreated.values()) {
+            // Created entries that replace generated ones were listed above
+            if (parentOf(entry.path).equals(path) && !isRemoved(entry.path) &&
+                    (!generated || generate(entry.path) == null))
+                results.add(entry);
+        }
+        return results;
+    }
+
+    private void addIfPresent(List<Entry> results, String path) {
+        final Entry entry = get(path);
+        if (entry != null)
+            results.add(entry);
+    }
+
+    public Entry makeFolder(String path) throws IOException {
+        return put(new Entry(normalize(path), true, -1, System.currentTimeMillis(), null, null));
+    }
+
+    public Entry write(String path, byte[] data) throws IOException {
+        return put(new Entry(normalize(path), false, data.length, System.currentTimeMillis(), data, null));
+    }
+
+    public Entry copy(String source, String dest) throws IOException {
+        final Entry entry = get(source);
+        if (entry == null)
+            throw new FileNotFoundException(source);
+        if (entry.isDir)
+            return makeFolder(dest);
+        return put(new Entry(normalize(dest), false, entry.length, System.currentTimeMillis(), entry.data,
+                entry.data == null ? (entry.seed != null ? entry.seed : entry.path) : null));
+    }
+
+    public boolean remove(String path) {
+        path = normalize(path);
+        if (get(path) == null) return false;
+        mCreated.remove(path);
+        mRemoved.add(path);
+        return true;
+    }
+
+    private Entry put(Entry entry) throws IOException {
+        final Entry parent = get(parentOf(entry.path));
+        if (parent == null || !parent.isDir)
+            throw new FileNotFoundException(parentOf(entry.path) + " isn't a folder.");
+        mRemoved.remove(entry.path);
+        mCreated.put(entry.path, entry);
+        return entry;
+    }
+
+    public InputStream open(String path) throws IOException {
+        final Entry entry = get(path);
+        if (entry == null || entry.isDir)
+            throw new FileNotFoundException(path);
+        if (entry.data != null)
+            return new ByteArrayInputStream(entry.data);
+        return new GeneratedInputStream(entry.seed != null ? entry.seed : entry.path, entry.length);
+    }
+
+    private boolean isRemoved(String path) {
+        if (mRemoved.isEmpty()) return false;
+        for (String p = path; !p.isEmpty(); p = parentOf(p)) {
+            if (mRemoved.contains(p)) return true;
+            if (p.equals("/")) break;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the generated entry at a path, or null if the shape of the tree doesn't have one.
+     */
+    private Entry generate(String path) {
+        if (path.equals("/"))
+            return new Entry("/", true, -1, EPOCH, null, null);
+        final String[] segments = path.substring(1).split("/");
+        for (int i = 0; i < segments.length; i++) {
+            final boolean last = i == segments.length - 1;
+            final int dir = index(segments[i], "dir", "");
+            if (dir >= 0 && dir < mFolders && i < mDepth) {
+                if (last)
+                    return new Entry(path, true, -1, modified(path), null, null);
+                continue;
+            }
+            final int file = index(segments[i], "file", ".bin");
+            if (last && file >= 0 && file < mFiles)
+                return new Entry(path, false, length(path), modified(path), null, null);
+            return null;
+        }
+        return null;
+    }
+
+    private long length(String path) {
+        final long range = mMaxFileSize - mMinFileSize;
+        return mMinFileSize + (range > 0 ? (hash(path) & Long.MAX_VALUE) % (range + 1) : 0);
+    }
+
+    private static long modified(String path) {
+        return EPOCH + (hash(path) & 0xFFFFFFFFL);
+    }
+
+    private static long hash(String path) {
+        // FNV-1a, String#hashCode() has too few bits for sizes and dates
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int index(String segment, String prefix, String suffix) {
+        if (!segment.startsWith(prefix) || !segment.endsWith(suffix) ||
+                segment.length() <= prefix.length() + suffix.length())
+            return -1;
+        try {
+            return Integer.parseInt(segment.substring(prefix.length(), segment.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int depth(String path) {
+        if (path.equals("/")) return 0;
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            if (path.charAt(i) == '/') depth++;
+        }
+        return depth;
+    }
+
+    static String normalize(String path) {
+        if (path == null || path.isEmpty()) return "/";
+        if (!path.startsWith("/")) path = "/" + path;
+        while (path.length() > 1 && path.endsWith("/"))
+            path = path.substring(0, path.length() - 1);
+        return path;
+    }
+
+    static String parentOf(String path) {
+        final int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+
+    static String child(String parent, String name) {
+        return parent.equals("/") ? "/" + name : parent + "/" + name;
+    }
+
+    /**
+     * Deterministic pseudo-random contents, generated as they're read.
+     */
+    private static class GeneratedInputStream extends InputStream {
+
+        private final Random mRandom;
+        private long mRemaining;
+
+        GeneratedInputStream(String seed, long length) {
+            mRandom = new Random(hash(seed));
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) return -1;
+            final int length = (int) Math.min(count, mRemaining);
+            final byte[] chunk = new byte[length];
+            mRandom.nextBytes(chunk);
+            System.arraycopy(chunk, 0, buffer, offset, length);
+            mRemaining -= length;
+            return length;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.afollestad.sample;
+
+import android.content.Intent;
+import android.net.Uri;
+
+import com.afollestad.cabinet.plugins.PluginError;
+import com.afollestad.cabinet.plugins.PluginException;
+import com.afollestad.cabinet.plugins.PluginFile;
+import com.afollestad.cabinet.plugins.PluginFileSink;
+import com.afollestad.cabinet.plugins.PluginService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A plugin backed by a {@link SyntheticFileSystem}, with simulated latency, bandwidth and failures.
+ * Used by {@link LoadGenerator} to load test the framework (dispatch, paging, watchers, the
+ * transfer queue and caches) without a real backend. See {@link Config} for what can be tuned.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public class SyntheticPluginService extends PluginService {
+
+    public static class Config {
+
+        protected double medianLatencyMillis = 20;
+        protected double latencySigma = 0.5;
+        protected long bytesPerSecond = 4 * 1024 * 1024;
+        protected double errorRate = 0.01;
+        protected int depth = 5;
+        protected int folders = 10;
+        protected int files = 100;
+        protected long minFileSize = 1024;
+        protected long maxFileSize = 512 * 1024;
+        protected long tokenLifetimeMillis = 0;
+
+        /**
+         * Latencies are log-normally distributed around the median; sigma controls the tail,
+         * e.g. 0.5 puts p99 at about 3.2x the median.
+         */
+        public Config latency(double medianMillis, double sigma) {
+            this.medianLatencyMillis = medianMillis;
+            this.latencySigma = sigma;
+            return this;
+        }
+
+        /**
+         * The transfer rate of each upload or download stream. Zero or less means unlimited.
+         */
+        public Config bandwidth(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * The fraction of calls, between 0 and 1, that fail with an IOException.
+         */
+        public Config errorRate(double errorRate) {
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * Every folder up to depth has the given number of subfolders and files. The defaults
+         * make a tree of about 11 million entries.
+         */
+        public Config tree(int depth, int folders, int files) {
+            this.depth = depth;
+            this.folders = folders;
+            this.files = files;
+            return this;
+        }
+
+        /**
+         * How long simulated access tokens last before calls fail with an expired token, which
+         * the service then refreshes. Zero or less means tokens never expire.
+         */
+        public Config tokenLifetime(long millis) {
+            this.tokenLifetimeMillis = millis;
+            return this;
+        }
+
+        public Config fileSize(long min, long max) {
+            this.minFileSize = min;
+            this.maxFileSize = max;
+            return this;
+        }
+
+        /**
+         * The number of entries in the generated tree.
+         */
+        public long treeSize() {
+            return newFileSystem().size();
+        }
+
+        /**
+         * A new copy of the generated tree, without any changes made to a service's copy.
+         */
+        public SyntheticFileSystem newFileSystem() {
+            return new SyntheticFileSystem(depth, folders, files, minFileSize, maxFileSize);
+        }
+    }
+
+    private static volatile Config sConfig = new Config();
+
+    /**
+     * Applies to services created afterwards.
+     */
+    public static void setConfig(Config config) {
+        sConfig = config;
+    }
+
+    public static Config getConfig() {
+        return sConfig;
+    }
+
+    private final Random mRandom = new Random();
+    private Config mConfig;
+    private SyntheticFileSystem mFileSystem;
+    private volatile boolean mConnected;
+    private volatile String mAccount = "synthetic";
+    private volatile long mTokenIssued = System.currentTimeMillis();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mConfig = sConfig;
+        mFileSystem = mConfig.newFileSystem();
+        setMetricsEnabled(true);
+    }
+
+    /**
+     * Waits for a simulated round trip, then fails with the configured probability.
+     */
+    private void simulate(String operation) throws IOException, PluginException {
+        final double gaussian;
+        final boolean fail;
+        synchronized (mRandom) {
+            gaussian = mRandom.nextGaussian();
+            fail = mRandom.nextDouble() < mConfig.errorRate;
+        }
+        final long millis = (long) (mConfig.medianLatencyMillis * Math.exp(mConfig.latencySigma * gaussian));
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(operation + " was interrupted");
+        }
+        if (fail)
+            throw new IOException("Injected failure in " + operation);
+        final long lifetime = mConfig.tokenLifetimeMillis;
+        if (lifetime > 0 && System.currentTimeMillis() - mTokenIssued > lifetime)
+            throw new PluginException(PluginError.ERROR_AUTH_EXPIRED, "Access token expired");
+    }
+
+    private PluginFile toPluginFile(SyntheticFileSystem.Entry entry, PluginFile parent) {
+        return new PluginFile.Builder(parent, this)
+                .path(entry.path)
+                .isDir(entry.isDir)
+                .length(entry.length)
+                .modified(entry.modified)
+                .created(entry.modified)
+                .build();
+    }
+
+    private static String pathOf(PluginFile file) {
+        return file != null ? file.getPath() : "/";
+    }
+
+    @Override
+    protected boolean authenticationNeeded() {
+        return false;
+    }
+
+    @Override
+    protected Intent authenticator() {
+        return null;
+    }
+
+    @Override
+    protected Intent settings() {
+        return null;
+    }
+
+    @Override
+    protected int getForegroundId() {
+        // No notification, load tests bind directly rather than going through Cabinet
+        return 0;
+    }
+
+    @Override
+    protected boolean refreshCredentials(String accountId) throws Exception {
+        // A round trip to the token endpoint
+        Thread.sleep((long) mConfig.medianLatencyMillis);
+        mTokenIssued = System.currentTimeMillis();
+        return true;
+    }
+
+    @Override
+    protected void connect() throws Exception {
+        mTokenIssued = System.currentTimeMillis();
+        simulate("connect");
+        mConnected = true;
+    }
+
+    @Override
+    protected Uri openFile(PluginFile file) throws Exception {
+        final File local = new File(getExternalCacheDir() != null ? getExternalCacheDir() : getCacheDir(), file.getName());
+        return download(file, Uri.fromFile(local));
+    }
+
+    @Override
+    protected PluginFile upload(Uri local, PluginFile remote) throws Exception {
+        return upload(openInputStream(local), -1, remote);
+    }
+
+    @Override
+    protected PluginFile upload(InputStream in, long length, PluginFile remote) throws Exception {
+        simulate("upload");
+        try {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream(length > 0 ? (int) length : 32);
+            final byte[] buffer = new byte[64 * 1024];
+            final InputStream throttled = throttle(in);
+            int read;
+            while ((read = throttled.read(buffer)) != -1)
+                data.write(buffer, 0, read);
+            return toPluginFile(mFileSystem.write(remote.getPath(), data.toByteArray()), remote.getParent());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    protected Uri download(PluginFile remote, Uri local) throws Exception {
+        simulate("download");
+        final InputStream is = openRemoteStream(remote);
+        try {
+            final OutputStream os = openOutputStream(local);
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = is.read(buffer)) != -1)
+                    os.write(buffer, 0, read);
+            } finally {
+                os.close();
+            }
+        } finally {
+            is.close();
+        }
+        return local;
+    }
+
+    @Override
+    protected InputStream openRemoteStream(PluginFile file) throws Exception {
+        return throttle(mFileSystem.open(file.getPath()));
+    }
+
+    private InputStream throttle(InputStream in) {
+        final long rate = mConfig.bytesPerSecond;
+        if (rate <= 0) return in;
+        return new FilterInputStream(in) {
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                final int read = super.read(buffer, offset, count);
+                if (read > 0) {
+                    try {
+                        Thread.sleep(read * 1000L / rate);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return read;
+            }
+        };
+    }
+
+    @Override
+    protected List<PluginFile> listFiles(PluginFile parent) throws Exception {
+        return collectFiles(parent);
+    }
+
+    @Override
+    protected void listFiles(PluginFile parent, PluginFileSink sink) throws Exception {
+        simulate("listFiles");
+        for (SyntheticFileSystem.Entry entry : mFileSystem.list(pathOf(parent))) {
+            if (!sink.onFile(toPluginFile(entry, parent)))
+                return;
+        }
+    }
+
+    @Override
+    protected void listFiles(String accountId, PluginFile parent, PluginFileSink sink) throws Exception {
+        // Every account sees the same tree
+        listFiles(parent, sink);
+    }
+
+    @Override
+    protected PluginFile makeFile(String displayName, PluginFile parent) throws Exception {
+        simulate("makeFile");
+        return toPluginFile(mFileSystem.write(SyntheticFileSystem.child(pathOf(parent), displayName), new byte[0]), parent);
+    }
+
+    @Override
+    protected PluginFile makeFolder(String displayName, PluginFile parent) throws Exception {
+        simulate("makeFolder");
+        return toPluginFile(mFileSystem.makeFolder(SyntheticFileSystem.child(pathOf(parent), displayName)), parent);
+    }
+
+    @Override
+    protected PluginFile copy(PluginFile source, PluginFile dest) throws Exception {
+        simulate("copy");
+        return toPluginFile(mFileSystem.copy(source.getPath(), dest.getPath()), dest.getParent());
+    }
+
+    @Override
+    protected boolean remove(PluginFile file) throws Exception {
+        simulate("remove");
+        return mFileSystem.remove(file.getPath());
+    }
+
+    @Override
+    protected PluginFile stat(PluginFile file) throws Exception {
+        simulate("stat");
+        final SyntheticFileSystem.Entry entry = mFileSystem.get(file.getPath());
+        return entry != null ? toPluginFile(entry, file.getParent()) : null;
+    }
+
+    @Override
+    protected boolean exists(String path) throws Exception {
+        simulate("exists");
+        return mFileSystem.get(path) != null;
+    }
+
+    @Override
+    protected boolean[] exists(String[] paths) throws Exception {
+        simulate("existsAll");
+        final boolean[] results = new boolean[paths.length];
+        for (int i = 0; i < paths.length; i++)
+            results[i] = mFileSystem.get(paths[i]) != null;
+        return results;
+    }
+
+    @Override
+    protected void chmod(int permissions, PluginFile target) throws Exception {
+        simulate("chmod");
+    }
+
+    @Override
+    protected void chown(int uid, PluginFile target) throws Exception {
+        simulate("chown");
+    }
+
+    @Override
+    protected void disconnect() throws Exception {
+        simulate("disconnect");
+        mConnected = false;
+    }
+
+    @Override
+    protected boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    protected void setCurrentAccount(String accountId) throws Exception {
+        simulate("setCurrentAccount");
+        mAccount = accountId;
+    }
+
+    @Override
+    protected String getCurrentAccount() {
+        return mAccount;
+    }
+
+    @Override
+    protected void removeAccount(String accountId) throws Exception {
+        simulate("removeAccount");
+    }
+}